@@ -0,0 +1,117 @@
+package zolera.chat.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import zolera.chat.infrastructure.*;
+import zolera.chat.server.*;
+
+// Throughput of RoomModel.submit() with every benchmark thread submitting as
+// its own client of one room, run once per thread count: -t 1, -t 2, -t 4.
+// The room orders, journals (without syncing) and fans out the messages to
+// clients that drop them. Submitters wait while the room is more than
+// MAX_BACKLOG messages behind, so the score is what the room sustains and
+// not how fast an unbounded queue grows.
+//
+// Built against jmh-core and jmh-generator-annprocess together with the
+// Infrastructure and Server sources, run with: java org.openjdk.jmh.Main SubmitBenchmark -t 2
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubmitBenchmark {
+	private static final int  CHECK_INTERVAL = 1024;
+	private static final long MAX_BACKLOG    = 64 * 1024;
+	
+	private File          journalRoot;
+	private RoomScheduler scheduler;
+	private RoomModel     room;
+	private AtomicInteger nextClient;
+	private LongAdder     submitted;
+	
+	@Setup
+	public void setUp()
+	throws Exception {
+		ServerConfiguration config = ServerConfiguration.getGlobal();
+		
+		journalRoot = TempJournal.create();
+		scheduler   = new RoomScheduler(config);
+		room        = new RoomModel("Bench" + System.nanoTime(), 0, new FanoutEngine(config), scheduler, new LeaseWheel(scheduler), journalRoot);
+		nextClient  = new AtomicInteger(0);
+		submitted   = new LongAdder();
+		room.setJournalSyncPolicy(JournalSyncPolicy.NONE);
+		
+		// what is measured is ingestion, a client falling behind is coalesced rather than dropped
+		room.setClientBackpressurePolicy(BackpressurePolicy.COALESCE);
+		room.startReplication();
+	}
+	
+	@TearDown
+	public void tearDown() {
+		room.close();
+		scheduler.shutdown();
+		TempJournal.delete(journalRoot);
+	}
+	
+	
+	
+	@State(Scope.Thread)
+	public static class Client {
+		private RemoteClientModel clientRef;
+		private ChatMessage       message;
+		private int               count;
+		
+		@Setup
+		public void setUp(SubmitBenchmark benchmark)
+		throws Exception {
+			String username = "bench" + benchmark.nextClient.getAndIncrement();
+			
+			clientRef = new DroppingClient();
+			message   = new ChatMessage(username, "Message of the submit benchmark");
+			if (benchmark.room.join(username, clientRef) != RemoteRoomModel.SUCCESSFUL_JOIN)
+				throw new IllegalStateException("Failed to join the benchmark room");
+			
+			// without replication peers the room becomes its own master after an election timeout
+			long deadline = System.currentTimeMillis() + 30_000;
+			while (benchmark.room.getDeliveredMessages() == 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			if (benchmark.room.getDeliveredMessages() == 0)
+				throw new IllegalStateException("The benchmark room has no master");
+		}
+	}
+	
+	@Benchmark
+	public int submit(Client client)
+	throws Exception {
+		int code = room.submit(client.clientRef, client.message);
+		if (code != RemoteRoomModel.MESSAGE_SUBMITTED)
+			throw new IllegalStateException("Message rejected (" + code + ")");
+		
+		if (++client.count == CHECK_INTERVAL) {
+			client.count = 0;
+			submitted.add(CHECK_INTERVAL);
+			while (submitted.sum() - room.getDeliveredMessages() > MAX_BACKLOG)
+				Thread.yield();
+		}
+		return code;
+	}
+	
+	
+	
+	private static class DroppingClient
+	implements RemoteClientModel {
+		@Override
+		public void receive(MessageBatch batch) {}
+		
+		@Override
+		public void chatlog(MessageBatch batch) {}
+		
+		@Override
+		public void presence(PresenceUpdate update) {}
+	}
+}
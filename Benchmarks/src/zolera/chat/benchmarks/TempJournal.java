@@ -0,0 +1,25 @@
+package zolera.chat.benchmarks;
+
+import java.io.*;
+import java.nio.file.Files;
+
+// Journal directory of the rooms a benchmark opens, removed with everything
+// in it once the benchmark is done, so no run leaves journals behind
+final class TempJournal {
+	private TempJournal() {}
+	
+	public static File create()
+	throws IOException {
+		return Files.createTempDirectory("zolera-bench-journal").toFile();
+	}
+	
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		
+		if (!file.delete())
+			System.err.println("Error: (benchmark) Failed to delete '" + file + "'");
+	}
+}
@@ -0,0 +1,97 @@
+package zolera.chat.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import zolera.chat.infrastructure.*;
+import zolera.chat.server.*;
+
+// User and room name checks as done before, with String.matches() compiling
+// the configured pattern on every call, and through the NameValidator of the
+// configuration. joinFullRoom is RoomModel.join() turned away by a full room,
+// which runs the whole validity check of a join.
+//
+// Built against jmh-core and jmh-generator-annprocess together with the
+// Infrastructure and Server sources, run with: java org.openjdk.jmh.Main ValidationBenchmark
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationBenchmark {
+	private static final String[] USERNAMES = {"alice", "bob_42", "Carol", "dave the 2nd"};
+	private static final String[] ROOMNAMES = {"Default", "Some room 42", "general_chat", "bad/room"};
+	
+	private ServerConfiguration config;
+	private File                journalRoot;
+	private RoomScheduler       scheduler;
+	private RoomModel           room;
+	private RemoteClientModel   extraClient;
+	private int                 next;
+	
+	@Setup
+	public void setUp()
+	throws Exception {
+		config      = ServerConfiguration.getGlobal();
+		journalRoot = TempJournal.create();
+		scheduler   = new RoomScheduler(config);
+		room        = new RoomModel("Bench" + System.nanoTime(), 0, new FanoutEngine(config), scheduler, new LeaseWheel(scheduler), journalRoot);
+		
+		for (int c = 0; c < config.getMaxRoomCapacity(); c++)
+			room.join("user" + c, new DroppingClient());
+		extraClient = new DroppingClient();
+		next        = 0;
+	}
+	
+	@TearDown
+	public void tearDown() {
+		room.close();
+		scheduler.shutdown();
+		TempJournal.delete(journalRoot);
+	}
+	
+	
+	
+	@Benchmark
+	public boolean usernameRegex() {
+		return USERNAMES[next++ & 3].matches(config.getUsernamePattern());
+	}
+	
+	@Benchmark
+	public boolean usernameValidator() {
+		return config.isValidUsername(USERNAMES[next++ & 3]);
+	}
+	
+	@Benchmark
+	public boolean roomnameRegex() {
+		return ROOMNAMES[next++ & 3].matches(config.getRoomnamePattern());
+	}
+	
+	@Benchmark
+	public boolean roomnameValidator() {
+		return config.isValidRoomname(ROOMNAMES[next++ & 3]);
+	}
+	
+	@Benchmark
+	public int joinFullRoom()
+	throws Exception {
+		return room.join(USERNAMES[next++ & 3], extraClient);
+	}
+	
+	
+	
+	private static class DroppingClient
+	implements RemoteClientModel {
+		@Override
+		public void receive(MessageBatch batch) {}
+		
+		@Override
+		public void chatlog(MessageBatch batch) {}
+		
+		@Override
+		public void presence(PresenceUpdate update) {}
+	}
+}
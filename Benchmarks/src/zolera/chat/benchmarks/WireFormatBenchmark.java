@@ -0,0 +1,87 @@
+package zolera.chat.benchmarks;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import zolera.chat.infrastructure.*;
+
+// A broadcast batch written to and read from an object stream, as RMI does,
+// in the compact encoding of MessageBatch and as the plain ChatMessage[] sent
+// before it. A new MessageBatch is written every time, so the encoding is
+// measured too. The stream sizes are printed once per fork.
+//
+// Built against jmh-core and jmh-generator-annprocess together with the
+// Infrastructure sources, run with: java org.openjdk.jmh.Main WireFormatBenchmark
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+	@Param({"50"})
+	private int messages;
+	
+	@Param({"5"})
+	private int senders;
+	
+	private ChatMessage[] batch;
+	private byte[]        compactStream;
+	private byte[]        serializedStream;
+	
+	@Setup
+	public void setUp()
+	throws IOException {
+		batch = new ChatMessage[messages];
+		for (int m = 0; m < messages; m++)
+			batch[m] = new ChatMessage("user" + (m % senders), "Message number " + m + " of the benchmark batch", 1000 + m);
+		
+		compactStream    = write(new MessageBatch(batch));
+		serializedStream = write(batch);
+		System.out.println("\nStream bytes: compact " + compactStream.length + ", serialized " + serializedStream.length);
+	}
+	
+	private static byte[] write(Object object)
+	throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(object);
+		}
+		return bytes.toByteArray();
+	}
+	
+	private static Object read(byte[] stream)
+	throws IOException, ClassNotFoundException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(stream))) {
+			return in.readObject();
+		}
+	}
+	
+	
+	
+	@Benchmark
+	public byte[] writeCompact()
+	throws IOException {
+		return write(new MessageBatch(batch));
+	}
+	
+	@Benchmark
+	public byte[] writeSerialized()
+	throws IOException {
+		return write(batch);
+	}
+	
+	@Benchmark
+	public Object readCompact()
+	throws IOException, ClassNotFoundException {
+		return read(compactStream);
+	}
+	
+	@Benchmark
+	public Object readSerialized()
+	throws IOException, ClassNotFoundException {
+		return read(serializedStream);
+	}
+}
@@ -2,6 +2,7 @@ package zolera.chat.client;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import zolera.chat.infrastructure.*;
 
@@ -15,6 +16,7 @@ public class CLIView {
 	
 	private String     lastMsgUser;
 	private ClientModel client;
+	private Future<Void> lastSend;
 	
 	private ProcessMessagesDelegate procMsg;
 	private ProcessMessagesDelegate procLogMsg;
@@ -29,6 +31,7 @@ public class CLIView {
 		
 		lastMsgUser = null;
 		client      = new ClientModel();
+		lastSend    = null;
 		
 		procMsg = new ProcessMessagesDelegate() {
 			public void process(ChatMessage[] batch) {
@@ -52,7 +55,10 @@ public class CLIView {
 			selectName();
 			
 			client.prepare();
-			client.connect(serverId);
+			if (serverId < 0)
+				client.connect(); // closest server
+			else
+				client.connect(serverId);
 			client.join(roomname, username, procMsg, procLogMsg);
 			serviceLoop();
 		}
@@ -74,9 +80,13 @@ public class CLIView {
 	
 	private void selectServer()
 	throws TerminateClientException {
-		System.out.print("Choose a server id: ");
+		System.out.print("Choose a server id (empty for the closest): ");
 		String idLine = nextInputLine();
 		
+		if (idLine.isEmpty()) {
+			serverId = -1;
+			return;
+		}
 		if (!idLine.matches("^[0-9]{1,3}$"))
 			throw new TerminateClientException("Server is is not an integer (" + idLine + ")");
 		
@@ -90,7 +100,7 @@ public class CLIView {
 		System.out.print("Choose a username: ");
 		username = nextInputLine();
 		
-		if (!username.matches(config.getUsernamePattern()))
+		if (!config.isValidUsername(username))
 			throw new TerminateClientException();
 		
 		System.out.println("Your username is '" + username + "'\n");
@@ -101,13 +111,39 @@ public class CLIView {
 		// We break out when a special termination string is submitted as a Message
 		while (true) {
 			String line = nextInputLine();
+			checkSent(false);
 			
 			if (line.equals(""))
 				continue;   // ignore empty lines
 			else if (config.getClientTerminationString().toLowerCase().equals(line.toLowerCase()))
 				break;   // exit service loop
+			else if (config.getClientHistoryString().equals(line))
+				printOlderMessages();
 			else
-				client.send(line);
+				lastSend = client.sendAsync(line); // piped input doesn't wait a round trip per line
+		}
+		
+		// whatever is still queued goes out before we leave
+		checkSent(true);
+	}
+	
+	// Sends complete in order, and a lost session fails every send after it too
+	private void checkSent(boolean wait)
+	throws TerminateClientException {
+		if (lastSend == null || (!wait && !lastSend.isDone()))
+			return;
+		
+		try {
+			lastSend.get();
+		}
+		catch (ExecutionException ee) {
+			if (ee.getCause() instanceof TerminateClientException)
+				throw (TerminateClientException) ee.getCause();
+			// a rejected message, like with send()
+			throw (RuntimeException) ee.getCause();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
 		}
 	}
 	
@@ -151,6 +187,21 @@ public class CLIView {
 		System.out.println("----- Chat Room '" + roomname + "' (end of log) -----");
 	}
 	
+	private void printOlderMessages()
+	throws TerminateClientException {
+		ChatMessage[] batch = client.loadOlderMessages(config.getMaxHistoryPageSize());
+		if (batch.length == 0) {
+			System.out.println("----- Chat Room '" + roomname + "' (no older messages) -----");
+			return;
+		}
+		
+		lastMsgUser = null;
+		System.out.println("----- Chat Room '" + roomname + "' (older messages) -----");
+		printMessages(batch);
+		System.out.println("----- Chat Room '" + roomname + "' (end of older messages) -----");
+		lastMsgUser = null;
+	}
+	
 	public static void main(String args[]) {
 		CLIView client = new CLIView();
 		client.run(System.in);
@@ -1,5 +1,8 @@
 package zolera.chat.client;
 
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
 import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
@@ -14,29 +17,63 @@ public class ClientModel
 implements RemoteClientModel {
 	private ServerConfiguration config;
 	private RemoteClientModel clientRef;
-	private ChatLog chatlog;
+	private CompactChatLog chatlog;
 	private ProcessMessagesDelegate dlgMsgProc;
 	private ProcessMessagesDelegate dlgLogMsgProc;
+	private ProcessPresenceDelegate dlgPresenceProc;
 	
-	private int         serverId;
+	private volatile int    serverId;
 	private String      username;
 	private String      roomname;
-	private RemoteServerModel serverRef;
-	private RemoteRoomModel   roomRef;
+	private volatile RemoteServerModel serverRef;
+	private volatile RemoteRoomModel   roomRef;
+	private long              oldestSequence;
+	private NioServerConnection nioConnection;
+	
+	// last sequence handed to the delegates, anything at or below it is a resend
+	private long                lastSequence;
+	private boolean             resuming;
+	private List<ChatMessage[]> heldBack;
+	private Object              failoverLock;
+	private Thread              monitorThread;
+	
+	// messages waiting to be submitted, in order, and the thread submitting them
+	private Deque<OutboundMessage> outbound;
+	private Thread                 senderThread;
+	
+	// registry lookups started ahead of connect(), until it takes their stubs
+	private Map<Integer, Future<RemoteServerModel>> prefetched;
+	private ExecutorService                         lookups;
+	
+	// users in the room, as of the last snapshot and the deltas after it
+	private Set<String> roster;
+	private long        rosterVersion;
 	
 	public ClientModel() {
 		config        = ServerConfiguration.getGlobal();
 		clientRef     = null;
 		
-		serverId  = -1;
-		serverRef = null;
+		serverId      = -1;
+		serverRef     = null;
+		nioConnection = null;
+		failoverLock  = new Object();
+		monitorThread = null;
+		heldBack      = new ArrayList<>();
+		roster        = new TreeSet<>();
+		prefetched    = new ConcurrentHashMap<>();
+		lookups       = null;
+		outbound      = new ArrayDeque<>();
+		senderThread  = null;
+		resetSession();
 		
 		username      = null;
 		roomname      = null;
 		chatlog       = null;
 		dlgMsgProc    = null;
 		dlgLogMsgProc = null;
+		dlgPresenceProc = null;
 		roomRef       = null;
+		oldestSequence = ChatMessage.UNSEQUENCED;
 	}
 	
 	public int getServerId() {
@@ -55,6 +92,48 @@ implements RemoteClientModel {
 		return chatlog.getSize();
 	}
 	
+	public synchronized boolean hasOlderMessages() {
+		return oldestSequence > 0;
+	}
+	
+	public synchronized String[] getRoster() {
+		return roster.toArray(new String[roster.size()]);
+	}
+	
+	// The last messages of the local log with a sequence below beforeSequence, at most maxCount
+	public synchronized ChatMessage[] getLoggedMessagesBefore(long beforeSequence, int maxCount) {
+		if (chatlog == null)
+			return new ChatMessage[0];
+		
+		long end   = findLoggedSequence(beforeSequence);
+		long start = Math.max(chatlog.getFirstIndex(), end - Math.max(maxCount, 0));
+		return chatlog.getMessages(start, (int) (end - start));
+	}
+	
+	// The first messages of the local log with a sequence above afterSequence, at most maxCount
+	public synchronized ChatMessage[] getLoggedMessagesAfter(long afterSequence, int maxCount) {
+		if (chatlog == null)
+			return new ChatMessage[0];
+		
+		return chatlog.getMessages(findLoggedSequence(afterSequence + 1), maxCount);
+	}
+	
+	// Caller holds the lock. Index of the first logged message with a sequence at or above
+	// the given one, the log is in sequence order since resent messages are dropped
+	private long findLoggedSequence(long sequence) {
+		long low  = chatlog.getFirstIndex();
+		long high = chatlog.getNextIndex();
+		while (low < high) {
+			long mid = (low + high) >>> 1;
+			if (chatlog.getSequence(mid) < sequence)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		
+		return low;
+	}
+	
 	
 	
 	public void prepare()
@@ -71,7 +150,15 @@ implements RemoteClientModel {
 		chatlog       = null;
 		dlgMsgProc    = null;
 		dlgLogMsgProc = null;
+		dlgPresenceProc = null;
 		roomRef       = null;
+		oldestSequence = ChatMessage.UNSEQUENCED;
+		
+		// the NIO transport calls back over the connection opened by the client
+		if (config.getTransport() == TransportType.NIO) {
+			clientRef = this;
+			return;
+		}
 		
 		try {
 			clientRef = (RemoteClientModel) UnicastRemoteObject.exportObject(this, 0);
@@ -83,11 +170,26 @@ implements RemoteClientModel {
 	}
 	
 	public void terminate() {
+		synchronized(failoverLock) {
+			terminateSession();
+		}
+	}
+	
+	private void terminateSession() {
 		if (clientRef == null)
 			return;
 		
+		if (monitorThread != null) {
+			monitorThread.interrupt();
+			monitorThread = null;
+		}
+		stopSender(new TerminateClientException("Client terminated before the message was sent"));
+		
 		try {
-			UnicastRemoteObject.unexportObject(this, true);
+			if (nioConnection != null)
+				nioConnection.close();
+			else if (clientRef != this)
+				UnicastRemoteObject.unexportObject(this, true);
 		}
 		catch (NoSuchObjectException nsoe) {
 			throw new IllegalStateException("Failedto unexport the client", nsoe);
@@ -96,13 +198,87 @@ implements RemoteClientModel {
 			clientRef     = null;
 			serverId      = -1;
 			serverRef     = null;
+			nioConnection = null;
 			username      = null;
 			roomname      = null;
 			chatlog       = null;
 			dlgMsgProc    = null;
 			dlgLogMsgProc = null;
+			dlgPresenceProc = null;
 			roomRef       = null;
+			oldestSequence = ChatMessage.UNSEQUENCED;
+			prefetched.clear();
+			shutdownLookupExecutor();
+			resetSession();
+		}
+	}
+	
+	private synchronized void resetSession() {
+		lastSequence = ChatMessage.UNSEQUENCED;
+		resuming     = false;
+		heldBack.clear();
+		roster.clear();
+		rosterVersion = -1;
+	}
+	
+	// Looks every server up in the background, in parallel, so that connecting
+	// later does not wait on a registry. NIO has no lookup, it connects directly
+	public void prefetchServers() {
+		// Need to be prepared
+		if (clientRef == null)
+			throw new IllegalStateException("Cannot look up servers until prepared");
+		if (config.getTransport() == TransportType.NIO)
+			return;
+		
+		ExecutorService executor = getLookupExecutor();
+		for (int id = 0; id < config.getRegistryAddressesListLength(); id++) {
+			final int candidate = id;
+			prefetched.put(id, executor.submit(new Callable<RemoteServerModel>() {
+				@Override
+				public RemoteServerModel call()
+				throws Exception {
+					return lookupRegistry(candidate);
+				}
+			}));
+		}
+	}
+	
+	// Lookups and probes share one pool for the whole session, its idle threads go away on their own
+	private synchronized ExecutorService getLookupExecutor() {
+		if (lookups == null) {
+			lookups = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "ServerLookup");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return lookups;
+	}
+	
+	private synchronized void shutdownLookupExecutor() {
+		if (lookups != null) {
+			lookups.shutdownNow();
+			lookups = null;
+		}
+	}
+	
+	// Connects to the server that answers a probe first, the closest healthy one
+	public void connect()
+	throws TerminateClientException {
+		// Need to be prepared
+		if (clientRef == null)
+			throw new IllegalStateException("Cannot connect to a server until prepared");
+		
+		int id = selectServer(new HashSet<Integer>());
+		if (id < 0) {
+			terminate();
+			throw new TerminateClientException("No server is reachable");
 		}
+		
+		connect(id);
 	}
 	
 	public void connect(int id)
@@ -117,7 +293,10 @@ implements RemoteClientModel {
 		chatlog       = null;
 		dlgMsgProc    = null;
 		dlgLogMsgProc = null;
+		dlgPresenceProc = null;
 		roomRef       = null;
+		oldestSequence = ChatMessage.UNSEQUENCED;
+		resetSession();
 		
 		String host;
 		int    port;
@@ -135,6 +314,29 @@ implements RemoteClientModel {
 			throw new IllegalStateException("Error parsing server address", ex);
 		}
 		
+		if (config.getTransport() == TransportType.NIO) {
+			try {
+				if (nioConnection != null)
+					nioConnection.close();
+				
+				nioConnection = new NioServerConnection(id, host, port + config.getNioPortOffset(), this);
+				serverRef     = nioConnection;
+			}
+			catch (IOException ioe) {
+				terminate();
+				throw new TerminateClientException("Cannot connect to the server", ioe);
+			}
+			return;
+		}
+		
+		// looked up already, a stub that turns out stale later fails over like any other
+		RemoteServerModel stub = getPrefetched(id);
+		prefetched.clear();
+		if (stub != null) {
+			serverRef = stub;
+			return;
+		}
+		
 		Registry registry;
 		try {
 			// Get the registry of the server
@@ -163,6 +365,11 @@ implements RemoteClientModel {
 	}
 	
 	public void join(String room, String user, ProcessMessagesDelegate procMsg, ProcessMessagesDelegate procLogMsg)
+	throws TerminateClientException {
+		join(room, user, procMsg, procLogMsg, null);
+	}
+	
+	public void join(String room, String user, ProcessMessagesDelegate procMsg, ProcessMessagesDelegate procLogMsg, ProcessPresenceDelegate procPresence)
 	throws TerminateClientException {
 		// Need to be prepared and connected
 		if (clientRef == null || serverRef == null)
@@ -171,17 +378,24 @@ implements RemoteClientModel {
 		try {
 			username      = user;
 			roomname      = room;
-			chatlog       = new ChatLog(config.getInitialChatLogCapacity());
+			chatlog       = new CompactChatLog(config.getInitialChatLogCapacity());
 			dlgMsgProc    = procMsg;
 			dlgLogMsgProc = procLogMsg;
+			dlgPresenceProc = procPresence;
 			roomRef       = serverRef.reference(roomname);
+			oldestSequence = ChatMessage.UNSEQUENCED;
 			
 			if (roomRef == null)
 				throw getValidityCheckException("room reference request");
+			
+			// the server may hand us to a less loaded one
+			serverId = roomRef.getServerId();
 		}
 		catch(RemoteException re) {
-			terminate();
-			throw new TerminateClientException("Failed to retrieve a reference to room '" + roomname + "'", re);
+			// the server is gone, join through another one
+			failover(roomRef, "Failed to retrieve a reference to room '" + roomname + "'", re);
+			startMonitor();
+			return;
 		}
 		
 		try {
@@ -201,38 +415,471 @@ implements RemoteClientModel {
 			}
 		}
 		catch(RemoteException re) {
-			terminate();
-			throw new TerminateClientException("Failed to join the room", re);
+			failover(roomRef, "Failed to join the room", re);
 		}
+		
+		startMonitor();
 	}
 	
+	// Waits for the server to take the message, see sendAsync()
 	public void send(String text)
 	throws TerminateClientException {
+		try {
+			sendAsync(text).get();
+		}
+		catch (ExecutionException ee) {
+			if (ee.getCause() instanceof TerminateClientException)
+				throw (TerminateClientException) ee.getCause();
+			if (ee.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ee.getCause();
+			throw new TerminateClientException("Failed to send message", ee.getCause());
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new TerminateClientException("Interrupted while sending a message", ie);
+		}
+	}
+	
+	// Queues the message and returns at once. Messages go out in order, those queued while a
+	// call is under way are submitted together in the next one. The future completes once the
+	// server took the message, or fails with the IllegalArgumentException of a rejected message
+	// or the TerminateClientException that ended the session. Outside a room, e.g. once the
+	// session ended, it fails with an IllegalStateException instead of throwing one
+	public CompletableFuture<Void> sendAsync(String text) {
+		CompletableFuture<Void> ack = new CompletableFuture<>();
+		
 		// Need to be prepared, connected and inside a room
-		if (clientRef == null || serverRef == null || roomRef == null)
-			throw new IllegalStateException("Cannot send messages until prepared, connected to a server and inside a room");
+		if (clientRef == null || serverRef == null || roomRef == null) {
+			ack.completeExceptionally(new IllegalStateException("Cannot send messages until prepared, connected to a server and inside a room"));
+			return ack;
+		}
+		
+		synchronized(outbound) {
+			outbound.addLast(new OutboundMessage(new ChatMessage(username, text), ack));
+			outbound.notifyAll();
+			
+			if (senderThread == null) {
+				senderThread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						sendOutbound();
+					}
+				}, "ClientSender");
+				senderThread.setDaemon(true);
+				senderThread.start();
+			}
+		}
 		
+		return ack;
+	}
+	
+	private void sendOutbound() {
+		List<OutboundMessage> batch = new ArrayList<>();
 		try {
-			// create message
-			ChatMessage message = new ChatMessage(username, text);
+			while (true) {
+				synchronized(outbound) {
+					while (outbound.isEmpty() && senderThread == Thread.currentThread())
+						outbound.wait();
+					if (senderThread != Thread.currentThread())
+						return; // the session ended, the queue belongs to the next one
+					
+					while (!outbound.isEmpty() && batch.size() < config.getMaxSubmitBatchSize())
+						batch.add(outbound.pollFirst());
+				}
+				
+				submitOutbound(batch);
+				batch.clear();
+			}
+		}
+		catch (InterruptedException ie) {
+			// terminated, stopSender() failed what was queued
+		}
+	}
+	
+	private void submitOutbound(List<OutboundMessage> batch) {
+		ChatMessage[] messages = new ChatMessage[batch.size()];
+		for (int m = 0; m < messages.length; m++)
+			messages[m] = batch.get(m).message;
+		MessageBatch msgBatch = new MessageBatch(messages);
+		
+		try {
+			// send the batch to the chat room, once more through another server if ours is gone
+			RemoteRoomModel room = roomRef;
+			int[] retcodes;
+			try {
+				retcodes = room.submitBatch(clientRef, msgBatch);
+			}
+			catch(RemoteException re) {
+				retcodes = failover(room, "Failed to send message", re).submitBatch(clientRef, msgBatch);
+			}
 			
-			// send message to chat room
-			int retcode = roomRef.submit(clientRef, message);
-			if (retcode == RemoteRoomModel.VALIDITY_CHECK_FAILED) {
-				// terminate() only required for TerminateClientExceptions
-				throw getValidityCheckException("message submission");
+			if (retcodes.length != messages.length)
+				throw getServerResponseException(RemoteRoomModel.VALIDITY_CHECK_FAILED);
+			
+			for (int m = 0; m < messages.length; m++) {
+				if (retcodes[m] == RemoteRoomModel.MESSAGE_SUBMITTED)
+					batch.get(m).ack.complete(null);
+				else if (retcodes[m] == RemoteRoomModel.VALIDITY_CHECK_FAILED)
+					batch.get(m).ack.completeExceptionally(getValidityCheckException("message submission"));
+				else
+					throw getServerResponseException(retcodes[m]);
 			}
-			else if (retcode != RemoteRoomModel.MESSAGE_SUBMITTED) {
-				terminate();
-				throw getServerResponseException(retcode);
+		}
+		catch (TerminateClientException tce) {
+			failOutbound(batch, tce);
+		}
+		catch (RemoteException re) {
+			failOutbound(batch, new TerminateClientException("Failed to send message", re));
+		}
+	}
+	
+	// Ends the session, the messages of the batch not acknowledged yet and those queued fail
+	private void failOutbound(List<OutboundMessage> batch, TerminateClientException cause) {
+		terminate();
+		for (OutboundMessage pending : batch)
+			pending.ack.completeExceptionally(cause);
+	}
+	
+	// Caller holds failoverLock
+	private void stopSender(TerminateClientException cause) {
+		List<OutboundMessage> dropped;
+		synchronized(outbound) {
+			if (senderThread != null)
+				senderThread.interrupt();
+			senderThread = null;
+			
+			dropped = new ArrayList<>(outbound);
+			outbound.clear();
+		}
+		
+		for (OutboundMessage pending : dropped)
+			pending.ack.completeExceptionally(cause);
+	}
+	
+	public ChatMessage[] loadOlderMessages(int maxCount)
+	throws TerminateClientException {
+		long oldest;
+		synchronized(this) {
+			oldest = oldestSequence;
+		}
+		
+		return loadMessagesBefore(oldest, maxCount);
+	}
+	
+	// Page of the room's history right before the given sequence, as retained by the server
+	public ChatMessage[] loadMessagesBefore(long sequence, int maxCount)
+	throws TerminateClientException {
+		// Need to be prepared, connected and inside a room
+		if (clientRef == null || serverRef == null || roomRef == null)
+			throw new IllegalStateException("Cannot load messages until prepared, connected to a server and inside a room");
+		
+		if (sequence <= 0)
+			return new ChatMessage[0];
+		
+		try {
+			// page backwards from the given sequence
+			int count = (int) Math.min(maxCount, sequence);
+			RemoteRoomModel room = roomRef;
+			ChatMessage[] batch;
+			try {
+				batch = room.history(sequence - count, count).getMessages();
 			}
+			catch(RemoteException re) {
+				batch = failover(room, "Failed to load older messages", re).history(sequence - count, count).getMessages();
+			}
+			
+			synchronized(this) {
+				if (batch.length != 0)
+					trackOldestSequence(batch);
+				else if (sequence <= oldestSequence)
+					oldestSequence = 0; // the server does not retain anything older
+			}
+			return batch;
 		}
 		catch(RemoteException re) {
 			terminate();
-			throw new TerminateClientException("Failed to send message", re);
+			throw new TerminateClientException("Failed to load older messages", re);
+		}
+	}
+	
+	// Moves the session to another server once the current one fails, returns the room there
+	private RemoteRoomModel failover(RemoteRoomModel failed, String error, RemoteException cause)
+	throws TerminateClientException {
+		RemoteRoomModel room = tryFailover(failed);
+		if (room == null) {
+			terminate();
+			throw new TerminateClientException(error, cause);
+		}
+		
+		return room;
+	}
+	
+	// Returns null if no server takes the session, the old one is only retried last
+	private RemoteRoomModel tryFailover(RemoteRoomModel failed) {
+		synchronized(failoverLock) {
+			if (clientRef == null)
+				return null; // terminated meanwhile
+			if (roomRef != failed)
+				return roomRef; // moved already by another thread
+			
+			int          failedId   = serverId;
+			Set<Integer> skipped    = new HashSet<>();
+			boolean      lastResort = false;
+			skipped.add(failedId);
+			
+			while (true) {
+				int id = selectServer(skipped);
+				if (id < 0) {
+					if (lastResort)
+						return null;
+					
+					lastResort = true;
+					skipped.remove(failedId);
+					continue;
+				}
+				
+				if (rejoin(id, failedId))
+					return roomRef;
+				skipped.add(id);
+			}
+		}
+	}
+	
+	// Joins the room through the given server and fills the gap since the last message seen
+	private boolean rejoin(int id, int failedId) {
+		RemoteServerModel server = null;
+		RemoteRoomModel   failed = roomRef;
+		try {
+			server = openServer(id);
+			RemoteRoomModel room = server.reference(roomname);
+			if (room == null)
+				return false;
+			
+			// the server may hand us to a less loaded one
+			int host = room.getServerId();
+			
+			synchronized(this) {
+				// live batches wait until the gap is filled, so they are delivered in order
+				resuming = (lastSequence != ChatMessage.UNSEQUENCED);
+				roomRef  = room;
+			}
+			
+			// the old server may still have us if only the connection failed
+			int retcode = room.join(username, clientRef);
+			if (retcode != RemoteRoomModel.SUCCESSFUL_JOIN && !(host == failedId && retcode == RemoteRoomModel.VALIDITY_CHECK_FAILED))
+				throw new RemoteException("Join refused by server " + host + " (" + retcode + ")");
+			
+			catchUp(room);
+			
+			if (nioConnection != null && nioConnection != server)
+				nioConnection.close();
+			nioConnection = (server instanceof NioServerConnection) ? (NioServerConnection) server : null;
+			serverRef     = server;
+			serverId      = host;
+		}
+		catch (IOException | NotBoundException ex) {
+			if (server instanceof NioServerConnection)
+				((NioServerConnection) server).close();
+			
+			synchronized(this) {
+				roomRef = failed;
+			}
+			finishResume();
+			return false;
+		}
+		
+		finishResume();
+		synchronized(this) {
+			if (dlgMsgProc != null)
+				dlgMsgProc.process(new ChatMessage[]{ new ChatMessage(config.getSystemMessagesUsername(), "Reconnected to server " + serverId) });
+		}
+		return true;
+	}
+	
+	private void catchUp(RemoteRoomModel room)
+	throws RemoteException {
+		while (true) {
+			long from;
+			synchronized(this) {
+				if (lastSequence == ChatMessage.UNSEQUENCED)
+					return; // nothing seen yet, the join sent the log
+				from = lastSequence + 1;
+			}
+			
+			ChatMessage[] missed = room.history(from, config.getMaxHistoryPageSize()).getMessages();
+			synchronized(this) {
+				deliver(missed, dlgMsgProc);
+				if (missed.length == 0 || lastSequence < from)
+					return;
+			}
+		}
+	}
+	
+	private synchronized void finishResume() {
+		resuming = false;
+		for (ChatMessage[] batch : heldBack)
+			deliver(batch, dlgMsgProc);
+		heldBack.clear();
+	}
+	
+	// Probes the servers in parallel, the first one to answer is the closest healthy one
+	private int selectServer(Set<Integer> skipped) {
+		CompletionService<Integer> answers = new ExecutorCompletionService<>(getLookupExecutor());
+		List<Future<Integer>>      probes  = new ArrayList<>();
+		
+		int probed = 0;
+		for (int id = 0; id < config.getRegistryAddressesListLength(); id++) {
+			if (skipped.contains(id))
+				continue;
+			
+			final int candidate = id;
+			probes.add(answers.submit(new Callable<Integer>() {
+				@Override
+				public Integer call()
+				throws Exception {
+					// answered by the server itself, not only its registry
+					lookupServer(candidate).getLoad();
+					return candidate;
+				}
+			}));
+			probed++;
+		}
+		
+		long deadline = System.currentTimeMillis() + config.getClientProbeTimeoutMillis();
+		try {
+			for (; probed > 0; probed--) {
+				Future<Integer> answer = answers.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+				if (answer == null)
+					break; // the others are too slow
+				
+				try {
+					return answer.get();
+				}
+				catch (ExecutionException ee) {
+					// unreachable, wait for the next answer
+				}
+			}
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			// the pool stays, only the probes still running are given up
+			for (Future<Integer> probe : probes)
+				probe.cancel(true);
+		}
+		
+		return -1;
+	}
+	
+	private RemoteServerModel lookupServer(int id)
+	throws RemoteException, NotBoundException {
+		RemoteServerModel stub = getPrefetched(id);
+		if (stub != null)
+			return stub;
+		
+		return lookupRegistry(id);
+	}
+	
+	// Returns null if the server was not prefetched or its lookup failed, waits for one still running
+	private RemoteServerModel getPrefetched(int id) {
+		Future<RemoteServerModel> lookup = prefetched.get(id);
+		if (lookup == null)
+			return null;
+		
+		try {
+			return lookup.get();
+		}
+		catch (ExecutionException ee) {
+			prefetched.remove(id, lookup);
+			return null;
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
+	private RemoteServerModel lookupRegistry(int id)
+	throws RemoteException, NotBoundException {
+		String[] components = config.getRegistryAddress(id).split(":");
+		Registry registry   = LocateRegistry.getRegistry(components[0], Integer.parseInt(components[1]));
+		return (RemoteServerModel) registry.lookup(config.getServerRegisteredName());
+	}
+	
+	private RemoteServerModel openServer(int id)
+	throws IOException, NotBoundException {
+		if (config.getTransport() != TransportType.NIO)
+			return lookupServer(id);
+		
+		String[] components = config.getRegistryAddress(id).split(":");
+		return new NioServerConnection(id, components[0], Integer.parseInt(components[1]) + config.getNioPortOffset(), this);
+	}
+	
+	private void startMonitor() {
+		synchronized(failoverLock) {
+			if (monitorThread != null || clientRef == null)
+				return;
+			
+			monitorThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					monitorServer();
+				}
+			}, "ServerMonitor");
+			monitorThread.setDaemon(true);
+			monitorThread.start();
 		}
 	}
 	
+	// An idle client would only notice a lost server on its next message, and the
+	// server would drop it once its lease runs out. Each check renews the lease
+	private void monitorServer() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Thread.sleep(config.getClientHealthCheckMillis());
+			}
+			catch (InterruptedException ie) {
+				return;
+			}
+			
+			RemoteRoomModel room = roomRef;
+			if (room == null)
+				return;
+			
+			try {
+				if (room.renew(clientRef) != RemoteRoomModel.LEASE_RENEWED)
+					rejoinExpired(room);
+			}
+			catch (RemoteException re) {
+				// no server now, try again on the next check
+				tryFailover(room);
+			}
+		}
+	}
+	
+	// The server removed us, e.g. after a long pause, join it again and fill the gap
+	private void rejoinExpired(RemoteRoomModel room) {
+		synchronized(failoverLock) {
+			if (clientRef == null || roomRef != room)
+				return;
+			
+			if (rejoin(serverId, serverId))
+				return;
+		}
+		
+		tryFailover(room);
+	}
+	
+	private void trackOldestSequence(ChatMessage[] batch) {
+		if (batch.length == 0 || !batch[0].isSequenced())
+			return;
+		
+		long first = batch[0].getSequence();
+		if (oldestSequence == ChatMessage.UNSEQUENCED || first < oldestSequence)
+			oldestSequence = first;
+	}
+	
 	private IllegalArgumentException getValidityCheckException(String op) {
 		return new IllegalArgumentException("Validity check of '" + op + "' failed");
 	}
@@ -244,26 +891,94 @@ implements RemoteClientModel {
 	
 	
 	@Override
-	public synchronized void receive(ChatMessage[] batch)
+	public synchronized void receive(MessageBatch msgBatch)
 	throws RemoteException {
 		// Need to be prepared, connected and inside a room
 		if (clientRef == null || serverRef == null || roomRef == null)
 			throw new IllegalStateException("Cannot receive messages until prepared, connected to a server and inside a room");
 		
-		chatlog.addMessageBatch(batch);
-		if (dlgMsgProc != null)
-			dlgMsgProc.process(batch);
+		// held back while the gap left by a failover is filled from the history
+		if (resuming)
+			heldBack.add(msgBatch.getMessages());
+		else
+			deliver(msgBatch.getMessages(), dlgMsgProc);
 	}
 	
 	@Override
-	public synchronized void chatlog(ChatMessage[] batch)
+	public synchronized void chatlog(MessageBatch msgBatch)
 	throws RemoteException {
 		// Need to be prepared, connected and inside a room
 		if (clientRef == null || serverRef == null || roomRef == null)
 			throw new IllegalStateException("Cannot receive messages until prepared, connected to a server and inside a room");
 		
+		// on a join after a failover only the messages we missed are new to the view
+		if (resuming)
+			heldBack.add(msgBatch.getMessages());
+		else if (lastSequence != ChatMessage.UNSEQUENCED)
+			deliver(msgBatch.getMessages(), dlgMsgProc);
+		else
+			deliver(msgBatch.getMessages(), dlgLogMsgProc);
+	}
+	
+	@Override
+	public synchronized void presence(PresenceUpdate update)
+	throws RemoteException {
+		// Need to be prepared, connected and inside a room
+		if (clientRef == null || serverRef == null || roomRef == null)
+			throw new IllegalStateException("Cannot receive the roster until prepared, connected to a server and inside a room");
+		
+		// a snapshot is sent on every join, also after a failover, and always replaces the roster
+		if (update.isSnapshot())
+			roster.clear();
+		else if (update.getVersion() <= rosterVersion)
+			return; // covered by the snapshot already
+		
+		roster.removeAll(Arrays.asList(update.getLeft()));
+		roster.addAll(Arrays.asList(update.getJoined()));
+		rosterVersion = update.getVersion();
+		
+		if (dlgPresenceProc != null)
+			dlgPresenceProc.process(update);
+	}
+	
+	// Caller holds the lock
+	private void deliver(ChatMessage[] batch, ProcessMessagesDelegate delegate) {
+		batch = dropSeenMessages(batch);
+		if (batch.length == 0)
+			return;
+		
 		chatlog.addMessageBatch(batch);
-		if (dlgLogMsgProc != null)
-			dlgLogMsgProc.process(batch);
+		trackOldestSequence(batch);
+		if (delegate != null)
+			delegate.process(batch);
+	}
+	
+	// Caller holds the lock, servers resend what we have seen when we join them after a failover
+	private ChatMessage[] dropSeenMessages(ChatMessage[] batch) {
+		ChatMessage[] fresh = new ChatMessage[batch.length];
+		int           count = 0;
+		for (ChatMessage msg : batch) {
+			if (!msg.isSequenced())
+				fresh[count++] = msg;
+			else if (msg.getSequence() > lastSequence) {
+				fresh[count++] = msg;
+				lastSequence   = msg.getSequence();
+			}
+		}
+		
+		return (count == batch.length) ? batch : Arrays.copyOf(fresh, count);
+	}
+	
+	
+	
+	// A message of sendAsync() and its acknowledgement
+	private static class OutboundMessage {
+		private final ChatMessage             message;
+		private final CompletableFuture<Void> ack;
+		
+		public OutboundMessage(ChatMessage msg, CompletableFuture<Void> future) {
+			message = msg;
+			ack     = future;
+		}
 	}
 }
@@ -0,0 +1,167 @@
+package zolera.chat.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import zolera.chat.infrastructure.*;
+
+// Append-only log of the messages a client has seen, in the order they were
+// added. Nothing is kept as a ChatMessage: senders go into a symbol table once
+// per name, texts as UTF-8 into a byte arena per chunk, and messages are built
+// back on demand. Indexes are absolute like those of the ChatLog.
+public class CompactChatLog {
+	private static final int NULL_SENDER = -1;
+	
+	private List<Chunk>          chunks;
+	private int                  chunkCapacity;
+	private List<String>         senders;
+	private Map<String, Integer> senderIds;
+	
+	private long firstIndex;
+	private int  size;
+	
+	public CompactChatLog(int chunkCapacity) {
+		if (chunkCapacity <= 0)
+			throw new IllegalArgumentException("Chunk capacity must be positive (" + chunkCapacity + ")");
+		
+		this.chunks        = new ArrayList<>();
+		this.chunkCapacity = chunkCapacity;
+		this.senders       = new ArrayList<>();
+		this.senderIds     = new HashMap<>();
+		
+		firstIndex = 0;
+		size       = 0;
+	}
+	
+	
+	
+	public void addMessageBatch(ChatMessage[] msg) {
+		for (int m = 0; m < msg.length; m++)
+			addMessage(msg[m]);
+	}
+	
+	private void addMessage(ChatMessage msg) {
+		Chunk last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+		if (last == null || last.count == chunkCapacity) {
+			if (last != null)
+				last.trim();
+			last = new Chunk(chunkCapacity);
+			chunks.add(last);
+		}
+		
+		last.add(internSender(msg.getSenderName()), msg.getSequence(), msg.getMessageText());
+		size++;
+	}
+	
+	private int internSender(String sender) {
+		if (sender == null)
+			return NULL_SENDER;
+		
+		Integer id = senderIds.get(sender);
+		if (id == null) {
+			id = senders.size();
+			senderIds.put(sender, id);
+			senders.add(sender);
+		}
+		return id;
+	}
+	
+	
+	
+	// Messages with index in [fromIndex, fromIndex + maxCount), built anew on every call
+	public ChatMessage[] getMessages(long fromIndex, int maxCount) {
+		long start = Math.max(fromIndex, firstIndex);
+		long end   = Math.min(fromIndex + Math.max(maxCount, 0), getNextIndex());
+		if (start >= end)
+			return new ChatMessage[0];
+		
+		ChatMessage[] result = new ChatMessage[(int) (end - start)];
+		for (int m = 0; m < result.length; m++) {
+			long  offset = start + m - firstIndex;
+			Chunk chunk  = chunks.get((int) (offset / chunkCapacity));
+			int   slot   = (int) (offset % chunkCapacity);
+			
+			int    sender = chunk.senders[slot];
+			String name   = (sender == NULL_SENDER) ? null : senders.get(sender);
+			result[m] = new ChatMessage(name, chunk.getText(slot), chunk.sequences[slot]);
+		}
+		
+		return result;
+	}
+	
+	// Same as getMessages(index, 1)[0].getSequence(), without building the message
+	public long getSequence(long index) {
+		if (index < firstIndex || index >= getNextIndex())
+			throw new IndexOutOfBoundsException("No message at index " + index);
+		
+		long offset = index - firstIndex;
+		return chunks.get((int) (offset / chunkCapacity)).sequences[(int) (offset % chunkCapacity)];
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	public long getFirstIndex() {
+		return firstIndex;
+	}
+	
+	public long getNextIndex() {
+		return firstIndex + size;
+	}
+	
+	
+	
+	// Text of message m spans [ends[m-1], ends[m]) of the arena, a null text is stored as ~end
+	private static class Chunk {
+		private int[]  senders;
+		private long[] sequences;
+		private int[]  ends;
+		private byte[] arena;
+		private int    used;
+		private int    count;
+		
+		public Chunk(int capacity) {
+			senders   = new int[capacity];
+			sequences = new long[capacity];
+			ends      = new int[capacity];
+			arena     = new byte[Math.min(capacity, 64) * 32];
+			used      = 0;
+			count     = 0;
+		}
+		
+		public void add(int sender, long sequence, String text) {
+			if (text != null) {
+				byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+				if (used + bytes.length > arena.length)
+					arena = Arrays.copyOf(arena, Math.max(arena.length * 2, used + bytes.length));
+				
+				System.arraycopy(bytes, 0, arena, used, bytes.length);
+				used += bytes.length;
+			}
+			
+			senders[count]   = sender;
+			sequences[count] = sequence;
+			ends[count]      = (text == null) ? ~used : used;
+			count++;
+		}
+		
+		public String getText(int slot) {
+			if (ends[slot] < 0)
+				return null;
+			
+			int start = (slot == 0) ? 0 : end(slot - 1);
+			return new String(arena, start, ends[slot] - start, StandardCharsets.UTF_8);
+		}
+		
+		private int end(int slot) {
+			return (ends[slot] < 0) ? ~ends[slot] : ends[slot];
+		}
+		
+		// Once full, the arena gives back the room it kept for growing
+		public void trim() {
+			if (used < arena.length)
+				arena = Arrays.copyOf(arena, used);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package zolera.chat.client;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+
+import zolera.chat.infrastructure.*;
+
+// Room operations of the NIO transport. The connection itself identifies the
+// client, so the clientRef arguments are not sent to the server.
+public class NioRoomProxy
+implements RemoteRoomModel {
+	private NioServerConnection connection;
+	
+	public NioRoomProxy(NioServerConnection conn) {
+		connection = conn;
+	}
+	
+	@Override
+	public int join(String username, RemoteClientModel clientRef)
+	throws RemoteException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			WireProtocol.writeString(new DataOutputStream(bytes), username);
+			return ByteBuffer.wrap(connection.call(WireProtocol.OP_JOIN, bytes.toByteArray())).getInt();
+		}
+		catch (IOException ioe) {
+			throw getTransportException(ioe);
+		}
+	}
+	
+	@Override
+	public int submit(RemoteClientModel clientRef, ChatMessage msg)
+	throws RemoteException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream      out   = new DataOutputStream(bytes);
+			WireProtocol.writeString(out, msg.getSenderName());
+			WireProtocol.writeString(out, msg.getMessageText());
+			return ByteBuffer.wrap(connection.call(WireProtocol.OP_SUBMIT, bytes.toByteArray())).getInt();
+		}
+		catch (IOException ioe) {
+			throw getTransportException(ioe);
+		}
+	}
+	
+	@Override
+	public int[] submitBatch(RemoteClientModel clientRef, MessageBatch batch)
+	throws RemoteException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			WireProtocol.writeBatch(new DataOutputStream(bytes), batch);
+			
+			ByteBuffer response = ByteBuffer.wrap(connection.call(WireProtocol.OP_SUBMIT_BATCH, bytes.toByteArray()));
+			int[]      codes    = new int[response.getInt()];
+			for (int c = 0; c < codes.length; c++)
+				codes[c] = response.getInt();
+			return codes;
+		}
+		catch (IOException ioe) {
+			throw getTransportException(ioe);
+		}
+	}
+	
+	@Override
+	public int renew(RemoteClientModel clientRef)
+	throws RemoteException {
+		try {
+			return ByteBuffer.wrap(connection.call(WireProtocol.OP_RENEW, new byte[0])).getInt();
+		}
+		catch (IOException ioe) {
+			throw getTransportException(ioe);
+		}
+	}
+	
+	@Override
+	public int getServerId() {
+		return connection.getServerId();
+	}
+	
+	@Override
+	public MessageBatch history(long fromSequence, int maxCount)
+	throws RemoteException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream      out   = new DataOutputStream(bytes);
+			out.writeLong(fromSequence);
+			out.writeInt(maxCount);
+			
+			byte[] response = connection.call(WireProtocol.OP_HISTORY, bytes.toByteArray());
+			return WireProtocol.readBatch(WireProtocol.payloadReader(response));
+		}
+		catch (IOException ioe) {
+			throw getTransportException(ioe);
+		}
+	}
+	
+	
+	
+	// Server to server operations, only available over RMI
+	@Override
+	public long broadcast(int masterId, long term, long channel, long frame, MessageBatch batch, long[] orderedShares, long committedSequence)
+	throws RemoteException {
+		throw getUnsupportedException("broadcast");
+	}
+	
+	@Override
+	public long share(int originId, long channel, long frame, long shareId, MessageBatch batch)
+	throws RemoteException {
+		throw getUnsupportedException("share");
+	}
+	
+	@Override
+	public long presence(int originId, long channel, long frame, PresenceUpdate update)
+	throws RemoteException {
+		throw getUnsupportedException("presence");
+	}
+	
+	@Override
+	public int registerRoom(int serverId, RemoteRoomModel remoteRoom)
+	throws RemoteException {
+		throw getUnsupportedException("registerRoom");
+	}
+	
+	@Override
+	public long heartbeat(int masterId, long term, long nextSequence)
+	throws RemoteException {
+		throw getUnsupportedException("heartbeat");
+	}
+	
+	@Override
+	public boolean requestVote(int candidateId, long term, long nextSequence)
+	throws RemoteException {
+		throw getUnsupportedException("requestVote");
+	}
+	
+	private RemoteException getUnsupportedException(String op) {
+		return new RemoteException("Operation '" + op + "' is not available over the NIO transport");
+	}
+	
+	private RemoteException getTransportException(IOException ioe) {
+		if (ioe instanceof RemoteException)
+			return (RemoteException) ioe;
+		return new RemoteException("Failure on NIO transport", ioe);
+	}
+}
@@ -0,0 +1,227 @@
+package zolera.chat.client;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import zolera.chat.infrastructure.*;
+
+// Client side of the NIO transport. Every request and every message pushed
+// by the server travels on this single connection, so nothing has to be
+// exported by the client and it works from behind a NAT.
+public class NioServerConnection
+implements RemoteServerModel, Runnable {
+	private int               serverId;
+	private SocketChannel     channel;
+	private RemoteClientModel client;
+	private long              requestTimeoutMillis;
+	private Thread            readerThread;
+	
+	private Map<Integer, CompletableFuture<byte[]>> pendingRequests;
+	private int     nextRequestId;
+	private boolean closed;
+	
+	public NioServerConnection(int id, String host, int port, RemoteClientModel callbacks)
+	throws IOException {
+		ServerConfiguration config = ServerConfiguration.getGlobal();
+		
+		serverId = id;
+		channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.socket().setTcpNoDelay(true);
+		
+		client               = callbacks;
+		requestTimeoutMillis = config.getNioRequestTimeoutMillis();
+		pendingRequests      = new ConcurrentHashMap<>();
+		nextRequestId        = 1;
+		closed               = false;
+		
+		readerThread = new Thread(this, "NioReader");
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+	
+	@Override
+	public RemoteRoomModel reference(String roomname)
+	throws RemoteException {
+		// rooms are not redirected over NIO, the client would need a connection to the other server
+		return referenceLocal(roomname);
+	}
+	
+	@Override
+	public RemoteRoomModel referenceLocal(String roomname)
+	throws RemoteException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			WireProtocol.writeString(new DataOutputStream(bytes), roomname);
+			
+			byte[] response = call(WireProtocol.OP_REFERENCE, bytes.toByteArray());
+			if (ByteBuffer.wrap(response).getInt() == 0)
+				return null;
+			
+			return new NioRoomProxy(this);
+		}
+		catch (IOException ioe) {
+			throw asRemoteException(ioe);
+		}
+	}
+	
+	@Override
+	public ServerLoad getLoad()
+	throws RemoteException {
+		throw new RemoteException("Operation 'getLoad' is not available over the NIO transport");
+	}
+	
+	public int getServerId() {
+		return serverId;
+	}
+	
+	public void close() {
+		synchronized(this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		
+		try {
+			channel.close();
+		}
+		catch (IOException ioe) {
+			// already gone
+		}
+		failPendingRequests("Connection closed");
+	}
+	
+	
+	
+	// Sends a request and waits for the server to answer it
+	byte[] call(byte opcode, byte[] payload)
+	throws RemoteException {
+		int requestId;
+		CompletableFuture<byte[]> response = new CompletableFuture<>();
+		
+		synchronized(this) {
+			if (closed)
+				throw new RemoteException("Connection to the server is closed");
+			
+			requestId = nextRequestId++;
+			pendingRequests.put(requestId, response);
+		}
+		
+		try {
+			write(WireProtocol.frame(opcode, requestId, payload));
+			return response.get(requestTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (IOException ioe) {
+			close();
+			throw asRemoteException(ioe);
+		}
+		catch (ExecutionException ee) {
+			throw asRemoteException(ee.getCause());
+		}
+		catch (TimeoutException te) {
+			throw new RemoteException("No answer from the server within " + requestTimeoutMillis + " ms");
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while waiting for the server", ie);
+		}
+		finally {
+			pendingRequests.remove(requestId);
+		}
+	}
+	
+	private void write(ByteBuffer[] frame)
+	throws IOException {
+		// the reader thread never writes, so this lock only orders the callers
+		synchronized(channel) {
+			while (frame[frame.length - 1].hasRemaining())
+				channel.write(frame);
+		}
+	}
+	
+	private static RemoteException asRemoteException(Throwable cause) {
+		if (cause instanceof RemoteException)
+			return (RemoteException) cause;
+		return new RemoteException("Failure on NIO transport", cause);
+	}
+	
+	
+	
+	@Override
+	public void run() {
+		// This is the readerThread entry point
+		try {
+			ByteBuffer header = ByteBuffer.allocate(WireProtocol.HEADER_BYTES);
+			
+			while (true) {
+				header.clear();
+				readFully(header);
+				header.flip();
+				
+				int  length    = header.getInt();
+				byte opcode    = header.get();
+				int  requestId = header.getInt();
+				if (length < 5 || length > WireProtocol.MAX_FRAME_BYTES)
+					throw new StreamCorruptedException("Invalid frame length " + length);
+				
+				ByteBuffer payload = ByteBuffer.allocate(length - 5);
+				readFully(payload);
+				handleFrame(opcode, requestId, payload.array());
+			}
+		}
+		catch (IOException ioe) {
+			close();
+		}
+	}
+	
+	private void readFully(ByteBuffer buffer)
+	throws IOException {
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) < 0)
+				throw new EOFException("Server closed the connection");
+	}
+	
+	private void handleFrame(byte opcode, int requestId, byte[] payload)
+	throws IOException {
+		switch (opcode) {
+		case WireProtocol.OP_RESPONSE:
+			complete(requestId, payload, null);
+			break;
+		case WireProtocol.OP_ERROR:
+			String reason = WireProtocol.readString(WireProtocol.payloadReader(payload));
+			complete(requestId, null, new RemoteException(reason));
+			break;
+		case WireProtocol.OP_RECEIVE:
+			client.receive(WireProtocol.readBatch(WireProtocol.payloadReader(payload)));
+			break;
+		case WireProtocol.OP_CHATLOG:
+			client.chatlog(WireProtocol.readBatch(WireProtocol.payloadReader(payload)));
+			break;
+		case WireProtocol.OP_PRESENCE:
+			client.presence(PresenceUpdate.read(WireProtocol.payloadReader(payload)));
+			break;
+		default:
+			throw new StreamCorruptedException("Unknown opcode " + opcode);
+		}
+	}
+	
+	private void complete(int requestId, byte[] payload, RemoteException error) {
+		CompletableFuture<byte[]> response = pendingRequests.get(requestId);
+		if (response == null)
+			return; // the caller gave up already
+		
+		if (error == null)
+			response.complete(payload);
+		else
+			response.completeExceptionally(error);
+	}
+	
+	private void failPendingRequests(String reason) {
+		for (CompletableFuture<byte[]> response : pendingRequests.values())
+			response.completeExceptionally(new RemoteException(reason));
+	}
+}
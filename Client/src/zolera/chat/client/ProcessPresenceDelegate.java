@@ -0,0 +1,7 @@
+package zolera.chat.client;
+
+import zolera.chat.infrastructure.*;
+
+public interface ProcessPresenceDelegate {
+	public void process(PresenceUpdate update);
+}
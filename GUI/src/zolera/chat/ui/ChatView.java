@@ -5,17 +5,26 @@
  */
 package zolera.chat.ui;
 
-import java.awt.Color;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
 import javax.swing.AbstractListModel;
 import javax.swing.DefaultListModel;
 import javax.swing.ListModel;
-import javax.swing.text.*;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import zolera.chat.client.ClientModel;
 import zolera.chat.client.ProcessMessagesDelegate;
+import zolera.chat.client.ProcessPresenceDelegate;
 import zolera.chat.client.TerminateClientException;
 import zolera.chat.infrastructure.ChatMessage;
+import zolera.chat.infrastructure.PresenceUpdate;
 import zolera.chat.infrastructure.ServerConfiguration;
 
 /**
@@ -26,8 +35,17 @@ public class ChatView extends javax.swing.JFrame {
     
     private ServerConfiguration config;
     private ClientModel client;
-    private String lastMsgUser;
     private DefaultListModel users;
+    private SwingWorker<Void, Void> joining;
+    private boolean closed;
+    
+    // callback threads only append here, the EDT renders it once per frame
+    private static final int FRAME_MILLIS = 16;
+    private MessageRing pending;
+    private Timer renderTimer;
+    private TranscriptView transcript;
+    private List<ChatMessage[]> renderBatches;
+    private List<Boolean> renderHistoric;
 
     /**
      * Creates new form ChatFrame
@@ -35,69 +53,90 @@ public class ChatView extends javax.swing.JFrame {
      * @param user
      * @param room
      */
-    public ChatView(ClientModel model, String room, String user) {
+    public ChatView(ClientModel model, final String room, final String user) {
         if (model == null)
             throw new IllegalArgumentException("Expecting a model");
         
         config      = ServerConfiguration.getGlobal();
         client      = model;
-        lastMsgUser = null;
+        closed      = false;
         
         users = new DefaultListModel();
         
-        ProcessMessagesDelegate procMsg = new ProcessMessagesDelegate() {
+        pending        = new MessageRing(64);
+        renderBatches  = new ArrayList<>();
+        renderHistoric = new ArrayList<>();
+        
+        final ProcessMessagesDelegate procMsg = new ProcessMessagesDelegate() {
             @Override
             public void process(ChatMessage[] batch) {
-                printMessageBatch(batch, false);
+                pending.append(batch, false);
             }
         };
-        ProcessMessagesDelegate procLogMsg = new ProcessMessagesDelegate() {
+        final ProcessMessagesDelegate procLogMsg = new ProcessMessagesDelegate() {
             @Override
             public void process(ChatMessage[] batch) {
-                printMessageBatch(batch, true);
+                pending.append(batch, true);
+            }
+        };
+        final ProcessPresenceDelegate procPresence = new ProcessPresenceDelegate() {
+            @Override
+            public void process(PresenceUpdate update) {
+                processPresence(update);
             }
         };
         
         initComponents();
+        transcript = new TranscriptView(client, this, txpLog, scpLogScroll);
         
-        try {
-            client.join(room, user, procMsg, procLogMsg);
-        }
-        catch (TerminateClientException tce) {
-            GUIView.terminateClient(null, client, tce, false);
-        }
+        renderTimer = new Timer(FRAME_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                renderPendingMessages();
+            }
+        });
+        renderTimer.start();
         
-        lblStatus.setText(getStatusBarInfo());
-        txfMessage.requestFocus();
-    }
-    
-    
-    
-    private static SimpleAttributeSet getSenderStyle() {
-        SimpleAttributeSet style = new SimpleAttributeSet();
-        StyleConstants.setBold(style, true);
-        StyleConstants.setForeground(style, Color.BLUE);
-        return style;
-    }
-    
-    private static SimpleAttributeSet getTextStyle() {
-        SimpleAttributeSet style = new SimpleAttributeSet();
-        StyleConstants.setForeground(style, Color.BLACK);
-        return style;
-    }
-    
-    private static void addSelfMsgStyle(SimpleAttributeSet sender, SimpleAttributeSet text) {
-        StyleConstants.setForeground(sender, Color.RED);
-    }
-    
-    private static void addSysMsgStyle(SimpleAttributeSet sender, SimpleAttributeSet text) {
-        StyleConstants.setItalic(text, true);
-        StyleConstants.setForeground(text, new Color(0, 153, 0)); // forest green
+        // the join brings the room's log along, the window is up meanwhile
+        txfMessage.setEnabled(false);
+        btnSend.setEnabled(false);
+        lblStatus.setText("Joining room '" + room + "' as " + user + "...");
+        
+        joining = new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                client.join(room, user, procMsg, procLogMsg, procPresence);
+                return null;
+            }
+            
+            @Override
+            protected void done() {
+                joining = null;
+                if (closed)
+                    return; // closing the window gave the client up
+                
+                try {
+                    get();
+                }
+                catch (InterruptedException | ExecutionException ex) {
+                    Throwable cause = (ex.getCause() instanceof Exception) ? ex.getCause() : ex;
+                    leave((Exception) cause);
+                    return;
+                }
+                
+                txfMessage.setEnabled(true);
+                btnSend.setEnabled(true);
+                lblStatus.setText(getStatusBarInfo());
+                txfMessage.requestFocus();
+            }
+        };
+        joining.execute();
     }
     
-    private static void addHistoricStyle(SimpleAttributeSet sender, SimpleAttributeSet text) {
-        StyleConstants.setForeground(sender, Color.LIGHT_GRAY);
-        StyleConstants.setForeground(text, Color.LIGHT_GRAY);
+    // Back to the login with the error, once
+    void leave(Exception ex) {
+        closed = true;
+        GUIView.terminateClient(this, client, ex, false);
     }
     
     
@@ -114,74 +153,100 @@ public class ChatView extends javax.swing.JFrame {
     
     
     
-    private void printMessage(String sender, SimpleAttributeSet senderStyle, String text, SimpleAttributeSet textStyle) {
-        try {
-            StyledDocument doc = txpLog.getStyledDocument();
-            
-            if (sender != null)
-                doc.insertString(doc.getLength(), sender + "\n", senderStyle);
-            
-            doc.insertString(doc.getLength(), text + "\n", textStyle);
-            lblStatus.setText(getStatusBarInfo());
-        }
-        catch (BadLocationException ble) {
-            throw new IllegalStateException("Invalid location for chat pane", ble);
-        }
+    // Runs on the EDT once per frame, everything received since the last one is a single document edit
+    private void renderPendingMessages() {
+        if (!pending.drainTo(renderBatches, renderHistoric))
+            return;
+        
+        transcript.append(renderBatches, renderHistoric);
+        renderBatches.clear();
+        renderHistoric.clear();
+        
+        lblStatus.setText(getStatusBarInfo());
     }
     
-    private void printMessageBatch(ChatMessage[] batch, boolean historic) {
-        for (int m = 0; m < batch.length; m++) {
-            ChatMessage msg    = batch[m];
-            String      sender = msg.getSenderName();
-            String      text   = "\t" + msg.getMessageText();
-            boolean     sysmsg = sender.equals(config.getSystemMessagesUsername());
-            
-            SimpleAttributeSet senderStyle = getSenderStyle();
-            SimpleAttributeSet textStyle   = getTextStyle();
-            
-            // prepare styles
-            if (sender.equals(client.getUsername()))
-                addSelfMsgStyle(senderStyle, textStyle);
-            if (sysmsg)
-                addSysMsgStyle(senderStyle, textStyle);
-            if (historic)
-                addHistoricStyle(senderStyle, textStyle);
-            
-            // set printing information and keep track of sender headers
-            if (sysmsg) {
-                processSysMsg(msg);
+    private void processPresence(final PresenceUpdate update) {
+        // called from the client's callback thread, the list belongs to the EDT
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (update.isSnapshot())
+                    users.clear();
                 
-                sender      = null; // don't print sender
-                lastMsgUser = null; // always print sender header after a sys msg
-                text        = ">>>" + text;
+                for (String user : update.getLeft())
+                    users.removeElement(user);
+                for (String user : update.getJoined())
+                    addUser(user);
             }
-            else if (sender.equals(lastMsgUser)) {
-                sender = null; // don't print sender
-            }
-            else {
-                lastMsgUser = sender;
-            }
-            
-            printMessage(sender, senderStyle, text, textStyle);
-        }
+        });
     }
     
-    private void processSysMsg(ChatMessage msg) {
-        String text = msg.getMessageText();
+    private void addUser(String user) {
+        // kept sorted, like the rosters the server sends
+        int index = 0;
+        while (index < users.size() && ((String) users.get(index)).compareTo(user) < 0)
+            index++;
         
-        if (text.contains("joined the room")) {
-            String[] split = text.split("'");
-                users.addElement(split[1]);
-        }
-        else if (text.contains("left the room")) {
-            String[] split = text.split("'");
-            if (users.contains(split[1]))
-                users.removeElement(split[1]);
-        }
+        if (index == users.size() || !users.get(index).equals(user))
+            users.add(index, user);
     }
     
     
     
+    // Batches received from the server, in order, until the EDT renders them.
+    // Appending never waits for the EDT, the ring grows while the view lags
+    private static class MessageRing {
+        private ChatMessage[][] batches;
+        private boolean[] historic;
+        private int head;
+        private int size;
+        
+        public MessageRing(int capacity) {
+            batches  = new ChatMessage[capacity][];
+            historic = new boolean[capacity];
+            head     = 0;
+            size     = 0;
+        }
+        
+        public synchronized void append(ChatMessage[] batch, boolean isHistoric) {
+            if (size == batches.length)
+                grow();
+            
+            int tail = (head + size) % batches.length;
+            batches[tail]  = batch;
+            historic[tail] = isHistoric;
+            size++;
+        }
+        
+        // Moves every batch to the lists, returns false if there was none
+        public synchronized boolean drainTo(List<ChatMessage[]> toBatches, List<Boolean> toHistoric) {
+            if (size == 0)
+                return false;
+            
+            for (; size > 0; size--) {
+                toBatches.add(batches[head]);
+                toHistoric.add(historic[head]);
+                batches[head] = null;
+                head = (head + 1) % batches.length;
+            }
+            head = 0;
+            return true;
+        }
+        
+        private void grow() {
+            ChatMessage[][] grownBatches  = new ChatMessage[2 * batches.length][];
+            boolean[]       grownHistoric = new boolean[2 * batches.length];
+            for (int b = 0; b < size; b++) {
+                grownBatches[b]  = batches[(head + b) % batches.length];
+                grownHistoric[b] = historic[(head + b) % batches.length];
+            }
+            
+            batches  = grownBatches;
+            historic = grownHistoric;
+            head     = 0;
+        }
+    }
+    
     /**
      * This method is called from within the constructor to initialize the form.
      * WARNING: Do NOT modify this code. The content of this method is always
@@ -323,20 +388,42 @@ public class ChatView extends javax.swing.JFrame {
         if (message.equals(""))
             return;
         
-        try {
-            client.send(message);
-        }
-        catch(TerminateClientException tce) {
-            GUIView.terminateClient(this, client, tce, false);
-        }
+        // the EDT doesn't wait for the server, a lost session comes back on the ack
+        client.sendAsync(message).whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void ignored, final Throwable error) {
+                // a rejected message is dropped, a session that ended or is gone already takes the view along
+                if (!(error instanceof TerminateClientException) && !(error instanceof IllegalStateException))
+                    return;
+                
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!closed)
+                            leave((Exception) error);
+                    }
+                });
+            }
+        });
         
         txfMessage.setText(null);
         txfMessage.requestFocus();
     }//GEN-LAST:event_btnSendActionPerformed
 
     private void formWindowClosed(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_formWindowClosed
-        client.terminate();
-        GUIView.switchView(this, new LoginView(client, null));
+        renderTimer.stop();
+        if (closed)
+            return; // switched to another view already
+        
+        // a join still running goes on with the client given up, the login starts with a new one
+        closed = true;
+        final ClientModel next = (joining != null) ? null : client;
+        GUIView.terminateInBackground(client, new Runnable() {
+            @Override
+            public void run() {
+                GUIView.switchView(null, new LoginView((next != null) ? next : new ClientModel(), null));
+            }
+        });
     }//GEN-LAST:event_formWindowClosed
     
     // Variables declaration - do not modify//GEN-BEGIN:variables
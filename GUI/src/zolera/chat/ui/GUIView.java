@@ -5,6 +5,7 @@
  */
 package zolera.chat.ui;
 
+import java.util.concurrent.ExecutionException;
 import javax.swing.*;
 import zolera.chat.client.*;
 import zolera.chat.infrastructure.*;
@@ -32,16 +33,45 @@ public class GUIView {
     }
     
     public static void terminateClient(JFrame fromView, ClientModel client, Exception ex, boolean showConsole) {
-        JFrame errorView;
-        
-        client.terminate();
-        
-        if (showConsole || DebuggingTools.DEBUG_MODE)
-            errorView = new ErrorView(client, ex);
-        else
-            errorView = new LoginView(client, ex);
-        
-        switchView(fromView, errorView);
+        // terminating may wait for a failover to give up, the next view comes once it's done
+        terminateInBackground(client, new Runnable() {
+            @Override
+            public void run() {
+                JFrame errorView;
+                
+                if (showConsole || DebuggingTools.DEBUG_MODE)
+                    errorView = new ErrorView(client, ex);
+                else
+                    errorView = new LoginView(client, ex);
+                
+                switchView(fromView, errorView);
+            }
+        });
+    }
+    
+    // Terminates the client off the EDT, then runs andThen (if any) on the EDT
+    public static void terminateInBackground(ClientModel client, Runnable andThen) {
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                client.terminate();
+                return null;
+            }
+            
+            @Override
+            protected void done() {
+                try {
+                    get();
+                }
+                catch (InterruptedException | ExecutionException ex) {
+                    System.err.println("Error: (terminate client) ");
+                    ex.printStackTrace();
+                }
+                
+                if (andThen != null)
+                    andThen.run();
+            }
+        }.execute();
     }
     
     
@@ -5,8 +5,11 @@
  */
 package zolera.chat.ui;
 
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import javax.swing.ComboBoxModel;
 import javax.swing.DefaultComboBoxModel;
+import javax.swing.SwingWorker;
 import zolera.chat.client.ClientModel;
 import zolera.chat.client.TerminateClientException;
 import zolera.chat.infrastructure.ServerConfiguration;
@@ -20,6 +23,7 @@ public class LoginView extends javax.swing.JFrame {
     private ServerConfiguration config;
     private ClientModel client;
     private Exception   exception;
+    private SwingWorker<Void, String> connecting;
     
     /**
      * Creates new form LoginFrame
@@ -32,15 +36,22 @@ public class LoginView extends javax.swing.JFrame {
         config     = ServerConfiguration.getGlobal();
         client     = model;
         exception  = ex;
+        connecting = null;
         
+        prepareClient();
+        initComponents();
+    }
+    
+    private void prepareClient() {
         try {
             client.prepare();
+            
+            // the registries are looked up while the user types, Join reuses the stubs
+            client.prefetchServers();
         }
         catch (TerminateClientException tce) {
             GUIView.terminateClient(this, client, tce, false);
         }
-        
-        initComponents();
     }
     
     
@@ -53,14 +64,35 @@ public class LoginView extends javax.swing.JFrame {
     }
     
     private ComboBoxModel getServerAddressesModel() {
-        String[] addresses = new String[config.getRegistryAddressesListLength()];
+        String[] addresses = new String[config.getRegistryAddressesListLength() + 1];
         
+        // first entry lets the client pick the closest server itself
+        addresses[0] = "Closest server";
         for (int addr = 0; addr < config.getRegistryAddressesListLength(); addr++)
-            addresses[addr] = config.getRegistryAddress(addr);
+            addresses[addr + 1] = config.getRegistryAddress(addr);
         
         return new DefaultComboBoxModel(addresses);
     }
     
+    private void setConnecting(boolean busy) {
+        txfUsername.setEnabled(!busy);
+        cmbServer.setEnabled(!busy);
+        btnJoin.setEnabled(!busy);
+        btnCancel.setEnabled(busy);
+        
+        if (!busy)
+            pnlErrorExt.setVisible(false);
+    }
+    
+    private void showProgress(String text) {
+        lblErrorMsg.setForeground(lblUsername.getForeground());
+        lblErrorMsg.setText(text);
+        if (!pnlErrorExt.isVisible()) {
+            pnlErrorExt.setVisible(true);
+            pack();
+        }
+    }
+    
     
 
     /**
@@ -77,6 +109,7 @@ public class LoginView extends javax.swing.JFrame {
         txfUsername = new javax.swing.JTextField();
         cmbServer = new javax.swing.JComboBox();
         btnJoin = new javax.swing.JButton();
+        btnCancel = new javax.swing.JButton();
         pnlErrorExt = new javax.swing.JPanel();
         lblErrorMsg = new javax.swing.JLabel();
 
@@ -107,6 +140,14 @@ public class LoginView extends javax.swing.JFrame {
             }
         });
 
+        btnCancel.setText("Cancel");
+        btnCancel.setEnabled(false);
+        btnCancel.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                btnCancelActionPerformed(evt);
+            }
+        });
+
         pnlErrorExt.setPreferredSize(new java.awt.Dimension(97, 50));
         pnlErrorExt.setVisible(!getErrorMessage().equals(""));
 
@@ -134,6 +175,8 @@ public class LoginView extends javax.swing.JFrame {
                 .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.TRAILING)
                     .addGroup(layout.createSequentialGroup()
                         .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                        .addComponent(btnCancel, javax.swing.GroupLayout.PREFERRED_SIZE, 100, javax.swing.GroupLayout.PREFERRED_SIZE)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                         .addComponent(btnJoin, javax.swing.GroupLayout.PREFERRED_SIZE, 100, javax.swing.GroupLayout.PREFERRED_SIZE))
                     .addGroup(javax.swing.GroupLayout.Alignment.LEADING, layout.createSequentialGroup()
                         .addGap(45, 45, 45)
@@ -161,7 +204,9 @@ public class LoginView extends javax.swing.JFrame {
                     .addComponent(lblServer)
                     .addComponent(cmbServer, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
-                .addComponent(btnJoin)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(btnJoin)
+                    .addComponent(btnCancel))
                 .addGap(0, 0, 0)
                 .addComponent(pnlErrorExt, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                 .addContainerGap(26, Short.MAX_VALUE))
@@ -171,27 +216,78 @@ public class LoginView extends javax.swing.JFrame {
     }// </editor-fold>//GEN-END:initComponents
 
     private void btnJoinActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnJoinActionPerformed
-        int    server = cmbServer.getSelectedIndex();
-        String room   = config.getDefaultRoomname();
-        String user   = txfUsername.getText();
+        final int    server = cmbServer.getSelectedIndex() - 1;
+        final String room   = config.getDefaultRoomname();
+        final String user   = txfUsername.getText();
         
-        if (!user.matches(config.getUsernamePattern()))
+        if (!config.isValidUsername(user))
             return;
-        if (!room.matches(config.getRoomnamePattern()))
+        if (!config.isValidRoomname(room))
             return;
-        if (server < 0 || server > config.getRegistryAddressesListLength())
+        if (server < -1 || server > config.getRegistryAddressesListLength())
             return;
         
-        try {
-            client.connect(server);
-            GUIView.switchView(this, new ChatView(client, room, user));
-        }
-        catch (TerminateClientException tce) {
-            GUIView.terminateClient(this, client, tce, false);
-        }
+        if (connecting != null)
+            return;
+        
+        // the registry and the server may take seconds to answer, or to time out
+        final ClientModel attempt = client;
+        setConnecting(true);
+        connecting = new SwingWorker<Void, String>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                if (server < 0) {
+                    publish("Looking for the closest server...");
+                    attempt.connect();
+                }
+                else {
+                    publish("Connecting to " + config.getRegistryAddress(server) + "...");
+                    attempt.connect(server);
+                }
+                return null;
+            }
+            
+            @Override
+            protected void process(List<String> progress) {
+                if (!isCancelled())
+                    showProgress(progress.get(progress.size() - 1));
+            }
+            
+            @Override
+            protected void done() {
+                if (isCancelled())
+                    return; // the client was given up already
+                
+                connecting = null;
+                try {
+                    get();
+                    GUIView.switchView(LoginView.this, new ChatView(attempt, room, user));
+                }
+                catch (InterruptedException | ExecutionException ex) {
+                    Throwable cause = (ex.getCause() instanceof Exception) ? ex.getCause() : ex;
+                    GUIView.terminateClient(LoginView.this, attempt, (Exception) cause, false);
+                }
+            }
+        };
+        connecting.execute();
     }//GEN-LAST:event_btnJoinActionPerformed
+
+    private void btnCancelActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnCancelActionPerformed
+        if (connecting == null)
+            return;
+        
+        connecting.cancel(true);
+        connecting = null;
+        
+        // a lookup can't be interrupted, it goes on with a client of its own that is given up
+        GUIView.terminateInBackground(client, null);
+        client = new ClientModel();
+        prepareClient();
+        setConnecting(false);
+    }//GEN-LAST:event_btnCancelActionPerformed
     
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JButton btnCancel;
     private javax.swing.JButton btnJoin;
     private javax.swing.JComboBox cmbServer;
     private javax.swing.JLabel lblErrorMsg;
@@ -0,0 +1,529 @@
+package zolera.chat.ui;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.event.AdjustmentEvent;
+import java.awt.event.AdjustmentListener;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.JTextPane;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.text.*;
+import zolera.chat.client.ClientModel;
+import zolera.chat.infrastructure.ChatMessage;
+import zolera.chat.infrastructure.ServerConfiguration;
+
+/**
+ * Transcript shown in the text pane of a chat view. The document only holds a
+ * window of the conversation, about getTranscriptWindowMessages() rows: the
+ * rows furthest from where the user reads are evicted, and they are rendered
+ * again from the client's log once the user scrolls back to them. Messages
+ * older than the log are paged in from the room's history on the server.
+ * Everything here runs on the EDT.
+ */
+public class TranscriptView {
+    
+    private ServerConfiguration config;
+    private ClientModel client;
+    private ChatView owner;
+    private JTextPane pane;
+    private JScrollBar bar;
+    private TranscriptDocument document;
+    private SimpleAttributeSet[][] styleCache;
+    private int maxRows;
+    private int pageRows;
+    
+    // rows in the document, in order, and whether the last one is the newest message
+    private Deque<Row> rows;
+    private boolean followingTail;
+    private boolean loadingHistory;
+    private boolean historyExhausted;
+    private int lastScrollValue;
+    
+    // messages before it came with the join, they are shown as historic when rendered again
+    private long firstLiveSequence;
+    
+    public TranscriptView(ClientModel model, ChatView view, JTextPane textPane, JScrollPane scrollPane) {
+        config     = ServerConfiguration.getGlobal();
+        client     = model;
+        owner      = view;
+        pane       = textPane;
+        bar        = scrollPane.getVerticalScrollBar();
+        document   = new TranscriptDocument();
+        styleCache = new SimpleAttributeSet[8][];
+        maxRows    = Math.max(1, config.getTranscriptWindowMessages());
+        pageRows   = Math.max(1, Math.min(config.getMaxHistoryPageSize(), maxRows / 2));
+        
+        rows              = new ArrayDeque<>();
+        followingTail     = true;
+        loadingHistory    = false;
+        historyExhausted  = false;
+        lastScrollValue   = 0;
+        firstLiveSequence = Long.MAX_VALUE;
+        
+        pane.setStyledDocument(document);
+        
+        // the caret would drag the view along with every edit, the scrolling is done here
+        ((DefaultCaret) pane.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        
+        // render older rows at the top, and newer ones at the bottom if they were evicted
+        bar.addAdjustmentListener(new AdjustmentListener() {
+            @Override
+            public void adjustmentValueChanged(AdjustmentEvent evt) {
+                // only when scrolled, the document growing under the view changes the maximum alone
+                if (evt.getValue() == lastScrollValue || bar.getMaximum() <= bar.getVisibleAmount())
+                    return;
+                lastScrollValue = evt.getValue();
+                
+                if (evt.getValue() == bar.getMinimum())
+                    showOlderRows();
+                else if (!followingTail && isAtBottom())
+                    showNewerRows();
+            }
+        });
+    }
+    
+    public int getRowCount() {
+        return rows.size();
+    }
+    
+    
+    
+    private static SimpleAttributeSet getSenderStyle() {
+        SimpleAttributeSet style = new SimpleAttributeSet();
+        StyleConstants.setBold(style, true);
+        StyleConstants.setForeground(style, Color.BLUE);
+        return style;
+    }
+    
+    private static SimpleAttributeSet getTextStyle() {
+        SimpleAttributeSet style = new SimpleAttributeSet();
+        StyleConstants.setForeground(style, Color.BLACK);
+        return style;
+    }
+    
+    private static void addSelfMsgStyle(SimpleAttributeSet sender, SimpleAttributeSet text) {
+        StyleConstants.setForeground(sender, Color.RED);
+    }
+    
+    private static void addSysMsgStyle(SimpleAttributeSet sender, SimpleAttributeSet text) {
+        StyleConstants.setItalic(text, true);
+        StyleConstants.setForeground(text, new Color(0, 153, 0)); // forest green
+    }
+    
+    private static void addHistoricStyle(SimpleAttributeSet sender, SimpleAttributeSet text) {
+        StyleConstants.setForeground(sender, Color.LIGHT_GRAY);
+        StyleConstants.setForeground(text, Color.LIGHT_GRAY);
+    }
+    
+    private SimpleAttributeSet[] getMessageStyles(ChatMessage msg, boolean historic) {
+        String  sender = msg.getSenderName();
+        boolean self   = sender.equals(client.getUsername());
+        boolean sysmsg = isSysMsg(msg);
+        
+        // only eight combinations, built once and shared by every message
+        int index = (self ? 4 : 0) + (sysmsg ? 2 : 0) + (historic ? 1 : 0);
+        if (styleCache[index] != null)
+            return styleCache[index];
+        
+        SimpleAttributeSet senderStyle = getSenderStyle();
+        SimpleAttributeSet textStyle   = getTextStyle();
+        
+        if (self)
+            addSelfMsgStyle(senderStyle, textStyle);
+        if (sysmsg)
+            addSysMsgStyle(senderStyle, textStyle);
+        if (historic)
+            addHistoricStyle(senderStyle, textStyle);
+        
+        styleCache[index] = new SimpleAttributeSet[] {senderStyle, textStyle};
+        return styleCache[index];
+    }
+    
+    private boolean isSysMsg(ChatMessage msg) {
+        return msg.getSenderName().equals(config.getSystemMessagesUsername());
+    }
+    
+    // Rows rendered again from the log look like they did the first time
+    private boolean isHistoric(ChatMessage msg) {
+        return msg.isSequenced() && msg.getSequence() < firstLiveSequence;
+    }
+    
+    
+    
+    // Adds the lines of one message to texts and styles, returns the sender the next message continues from
+    private String addRow(ChatMessage msg, boolean historic, String previousUser, List<Row> added, List<String> texts, List<AttributeSet> styles) {
+        Row                  row       = new Row(msg);
+        String               sender    = msg.getSenderName();
+        String               text      = "\t" + msg.getMessageText();
+        SimpleAttributeSet[] msgStyles = getMessageStyles(msg, historic);
+        
+        // set printing information and keep track of sender headers
+        if (isSysMsg(msg)) {
+            sender       = null; // don't print sender
+            previousUser = null; // always print sender header after a sys msg
+            text         = ">>>" + text;
+        }
+        else if (sender.equals(previousUser)) {
+            sender = null; // don't print sender
+        }
+        else {
+            previousUser = sender;
+        }
+        
+        if (sender != null) {
+            texts.add(sender + "\n");
+            styles.add(msgStyles[0]);
+            row.header  = true;
+            row.length += sender.length() + 1;
+        }
+        texts.add(text + "\n");
+        styles.add(msgStyles[1]);
+        row.length += text.length() + 1;
+        
+        added.add(row);
+        return previousUser;
+    }
+    
+    // Sender a message after the row continues from, null if it needs a header anyway
+    private String getContinuedSender(Row row) {
+        if (row == null || isSysMsg(row.msg))
+            return null;
+        return row.msg.getSenderName();
+    }
+    
+    private long getFirstSequence() {
+        for (Row row : rows)
+            if (row.msg.isSequenced())
+                return row.msg.getSequence();
+        return ChatMessage.UNSEQUENCED;
+    }
+    
+    private long getLastSequence() {
+        Iterator<Row> it = rows.descendingIterator();
+        while (it.hasNext()) {
+            ChatMessage msg = it.next().msg;
+            if (msg.isSequenced())
+                return msg.getSequence();
+        }
+        return ChatMessage.UNSEQUENCED;
+    }
+    
+    
+    
+    // Messages received since the last frame. Once the newest rows were evicted they
+    // are only in the log, and are shown from there when the user scrolls down again
+    public void append(List<ChatMessage[]> batches, List<Boolean> historic) {
+        long             last     = getLastSequence();
+        List<ChatMessage> messages = new ArrayList<>();
+        List<Boolean>     flags    = new ArrayList<>();
+        for (int b = 0; b < batches.size(); b++) {
+            for (ChatMessage msg : batches.get(b)) {
+                if (!historic.get(b) && msg.isSequenced())
+                    firstLiveSequence = Math.min(firstLiveSequence, msg.getSequence());
+                if (msg.isSequenced() && msg.getSequence() <= last)
+                    continue; // rendered from the log already
+                
+                messages.add(msg);
+                flags.add(historic.get(b));
+            }
+        }
+        if (!followingTail || messages.isEmpty())
+            return;
+        
+        // a long replay only renders what fits in the window
+        int skipped = Math.max(0, messages.size() - maxRows);
+        
+        List<Row>          added  = new ArrayList<>();
+        List<String>       texts  = new ArrayList<>();
+        List<AttributeSet> styles = new ArrayList<>();
+        String previousUser = (skipped > 0) ? null : getContinuedSender(rows.peekLast());
+        for (int m = skipped; m < messages.size(); m++)
+            previousUser = addRow(messages.get(m), flags.get(m), previousUser, added, texts, styles);
+        
+        boolean atBottom = isAtBottom();
+        if (skipped > 0)
+            clear();
+        document.insertLines(document.getLength(), texts, styles);
+        rows.addAll(added);
+        
+        // evicted a page at a time, every removal goes over the positions the document tracks
+        if (rows.size() >= maxRows + pageRows)
+            evictRowsAwayFromView(rows.size() - maxRows, atBottom);
+        if (atBottom)
+            scrollToBottom();
+    }
+    
+    private void showOlderRows() {
+        if (loadingHistory)
+            return;
+        
+        long first = getFirstSequence();
+        if (first == ChatMessage.UNSEQUENCED)
+            return;
+        
+        ChatMessage[] logged = client.getLoggedMessagesBefore(first, pageRows);
+        if (logged.length > 0) {
+            prependRows(logged);
+            return;
+        }
+        
+        // older than the log, only the server has them
+        if (historyExhausted || first <= 0)
+            return;
+        
+        final long before = first;
+        loadingHistory = true;
+        new SwingWorker<ChatMessage[], Void>() {
+            @Override
+            protected ChatMessage[] doInBackground() throws Exception {
+                return client.loadMessagesBefore(before, pageRows);
+            }
+            
+            @Override
+            protected void done() {
+                try {
+                    ChatMessage[] batch = get();
+                    if (batch.length == 0)
+                        historyExhausted = true;
+                    else if (getFirstSequence() == before)
+                        prependRows(batch);
+                }
+                catch (InterruptedException | ExecutionException ex) {
+                    Throwable cause = (ex.getCause() instanceof Exception) ? ex.getCause() : ex;
+                    owner.leave((Exception) cause);
+                }
+                finally {
+                    loadingHistory = false;
+                }
+            }
+        }.execute();
+    }
+    
+    private void showNewerRows() {
+        long last = getLastSequence();
+        if (last == ChatMessage.UNSEQUENCED) {
+            followingTail = true;
+            return;
+        }
+        
+        // whatever arrives after this is still in the ring, the next frame appends it
+        ChatMessage[] logged = client.getLoggedMessagesAfter(last, pageRows);
+        if (logged.length < pageRows)
+            followingTail = true;
+        if (logged.length == 0)
+            return;
+        
+        List<Row>          added  = new ArrayList<>();
+        List<String>       texts  = new ArrayList<>();
+        List<AttributeSet> styles = new ArrayList<>();
+        String previousUser = getContinuedSender(rows.peekLast());
+        for (ChatMessage msg : logged)
+            previousUser = addRow(msg, isHistoric(msg), previousUser, added, texts, styles);
+        
+        document.insertLines(document.getLength(), texts, styles);
+        rows.addAll(added);
+        
+        if (rows.size() > maxRows)
+            evictRowsAwayFromView(rows.size() - maxRows, false);
+    }
+    
+    private void prependRows(ChatMessage[] batch) {
+        // the row that was first keeps its header, the page ends right before it
+        List<Row>          added  = new ArrayList<>();
+        List<String>       texts  = new ArrayList<>();
+        List<AttributeSet> styles = new ArrayList<>();
+        String previousUser = null;
+        for (ChatMessage msg : batch)
+            previousUser = addRow(msg, isHistoric(msg), previousUser, added, texts, styles);
+        
+        int chars = 0;
+        for (Row row : added)
+            chars += row.length;
+        
+        document.insertLines(0, texts, styles);
+        for (int r = added.size() - 1; r >= 0; r--)
+            rows.addFirst(added.get(r));
+        shiftView(getOffsetY(chars));
+        
+        if (rows.size() > maxRows)
+            evictLastRows(rows.size() - maxRows);
+    }
+    
+    
+    
+    // Rows above the view go if they are all out of sight, otherwise the newest ones do
+    private void evictRowsAwayFromView(int count, boolean atBottom) {
+        if (atBottom) {
+            evictFirstRows(count, false);
+            return;
+        }
+        
+        int           chars = 0;
+        Iterator<Row> it    = rows.iterator();
+        for (int r = 0; r < count; r++)
+            chars += it.next().length;
+        
+        if (getOffsetY(chars) <= bar.getValue())
+            evictFirstRows(count, true);
+        else
+            evictLastRows(count);
+    }
+    
+    // Removes rows above the user, keepView leaves the rows below them where they were on screen
+    private void evictFirstRows(int count, boolean keepView) {
+        int chars = 0;
+        for (int r = 0; r < count; r++)
+            chars += rows.removeFirst().length;
+        
+        int heightBefore = keepView ? getOffsetY(chars) : 0;
+        removeText(0, chars);
+        
+        // the new first row may continue a sender whose header was just removed
+        Row first = rows.peekFirst();
+        if (first != null && !first.header && !isSysMsg(first.msg)) {
+            String header = first.msg.getSenderName() + "\n";
+            List<String>       texts  = new ArrayList<>();
+            List<AttributeSet> styles = new ArrayList<>();
+            texts.add(header);
+            styles.add(getMessageStyles(first.msg, isHistoric(first.msg))[0]);
+            
+            document.insertLines(0, texts, styles);
+            first.header  = true;
+            first.length += header.length();
+            chars         = header.length();
+        }
+        else {
+            chars = 0;
+        }
+        
+        if (keepView)
+            shiftView(getOffsetY(chars) - heightBefore);
+    }
+    
+    // Removes rows below the user, they are rendered from the log again on the way down
+    private void evictLastRows(int count) {
+        int chars = 0;
+        for (int r = 0; r < count; r++)
+            chars += rows.removeLast().length;
+        
+        removeText(document.getLength() - chars, chars);
+        followingTail = false;
+    }
+    
+    private void clear() {
+        removeText(0, document.getLength());
+        rows.clear();
+    }
+    
+    private void removeText(int offset, int length) {
+        try {
+            document.remove(offset, length);
+        }
+        catch (BadLocationException ble) {
+            throw new IllegalStateException("Invalid location for chat pane", ble);
+        }
+    }
+    
+    
+    
+    private boolean isAtBottom() {
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum();
+    }
+    
+    // Vertical position of a document offset in the pane as laid out now,
+    // modelToView is deprecated from Java 9 on only
+    @SuppressWarnings("deprecation")
+    private int getOffsetY(int offset) {
+        try {
+            Rectangle rect = pane.modelToView(offset);
+            return (rect == null) ? 0 : rect.y;
+        }
+        catch (BadLocationException ble) {
+            return 0;
+        }
+    }
+    
+    // Keeps following the conversation once the pane is laid out again
+    private void scrollToBottom() {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                bar.setValue(bar.getMaximum() - bar.getVisibleAmount());
+            }
+        });
+    }
+    
+    // Scrolls by the height added above the user once the pane is laid out again,
+    // the rows they were looking at stay in place
+    private void shiftView(int delta) {
+        if (delta == 0)
+            return;
+        
+        final int value = bar.getValue() + delta;
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                bar.setValue(value);
+            }
+        });
+    }
+    
+    
+    
+    // One message in the document: its header line if it has one, and its text line
+    private static class Row {
+        private ChatMessage msg;
+        private boolean header;
+        private int length;
+        
+        public Row(ChatMessage message) {
+            msg    = message;
+            header = false;
+            length = 0;
+        }
+    }
+    
+    // Document taking many styled lines in one edit: a single insert, a single
+    // event and a single relayout, instead of one insertString per line
+    private static class TranscriptDocument extends DefaultStyledDocument {
+        private static final long serialVersionUID = 1L;
+        
+        // Every text is a whole line ending in '\n', offset is the start of a line
+        public void insertLines(int offset, List<String> texts, List<AttributeSet> styles) {
+            if (texts.isEmpty())
+                return;
+            
+            List<ElementSpec> specs = new ArrayList<>(3 * texts.size() + 2);
+            if (offset > 0) {
+                // close the paragraph before, the first line starts a new one
+                specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+                specs.add(new ElementSpec(null, ElementSpec.StartTagType));
+            }
+            for (int t = 0; t < texts.size(); t++) {
+                char[] chars = texts.get(t).toCharArray();
+                specs.add(new ElementSpec(styles.get(t), ElementSpec.ContentType, chars, 0, chars.length));
+                
+                // at the start the last paragraph is closed too, the text after it keeps its own
+                if (offset == 0 || t < texts.size() - 1) {
+                    specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+                    specs.add(new ElementSpec(null, ElementSpec.StartTagType));
+                }
+            }
+            
+            try {
+                insert(offset, specs.toArray(new ElementSpec[specs.size()]));
+            }
+            catch (BadLocationException ble) {
+                throw new IllegalStateException("Invalid location for chat pane", ble);
+            }
+        }
+    }
+}
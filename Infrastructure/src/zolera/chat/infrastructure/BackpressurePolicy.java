@@ -0,0 +1,8 @@
+package zolera.chat.infrastructure;
+
+// What a room does with a client whose outbound queue is full
+public enum BackpressurePolicy {
+	DROP_OLDEST,   // discard the oldest undelivered messages
+	COALESCE,      // merge every queued batch into a single one, never discard
+	DISCONNECT     // remove the client once it falls too far behind
+}
@@ -2,25 +2,165 @@ package zolera.chat.infrastructure;
 
 import java.util.*;
 
+// Messages are kept in fixed size segments, the oldest segments are dropped
+// once the log goes over its message or byte limit. Indexes are absolute: the
+// n-th message ever added has index n-1 even after older ones were dropped.
 public class ChatLog {
-	private List<ChatMessage> messages;
+	public static final int  UNLIMITED_MESSAGES = Integer.MAX_VALUE;
+	public static final long UNLIMITED_BYTES    = Long.MAX_VALUE;
 	
-	public ChatLog(int initialCapacity) {
-		messages = new ArrayList<ChatMessage>(initialCapacity);
+	private Deque<Segment> segments;
+	private int  segmentCapacity;
+	private int  maxMessages;
+	private long maxBytes;
+	
+	private long firstIndex;
+	private int  size;
+	private long bytes;
+	
+	public ChatLog(int segmentCapacity) {
+		this(segmentCapacity, UNLIMITED_MESSAGES, UNLIMITED_BYTES);
+	}
+	
+	public ChatLog(int segmentCapacity, int maxMessages, long maxBytes) {
+		if (segmentCapacity <= 0)
+			throw new IllegalArgumentException("Segment capacity must be positive (" + segmentCapacity + ")");
+		
+		this.segments        = new ArrayDeque<>();
+		this.segmentCapacity = segmentCapacity;
+		this.maxMessages     = maxMessages;
+		this.maxBytes        = maxBytes;
+		
+		firstIndex = 0;
+		size       = 0;
+		bytes      = 0;
+	}
+	
+	
+	
+	// Lets a log rebuilt from a partial history keep the original indexes
+	public void setNextIndex(long index) {
+		if (size != 0)
+			throw new IllegalStateException("Cannot move the index of a log that has messages");
+		
+		firstIndex = index;
 	}
 	
 	public void addMessageBatch(ChatMessage[] msg) {
 		for (int m = 0; m < msg.length; m++)
-			messages.add(msg[m]);
+			addMessage(msg[m]);
+		
+		evictOldSegments();
 	}
 	
+	private void addMessage(ChatMessage msg) {
+		Segment last = segments.peekLast();
+		if (last == null || last.count == segmentCapacity) {
+			last = new Segment(segmentCapacity);
+			segments.addLast(last);
+		}
+		
+		long msgBytes = estimateSize(msg);
+		last.messages[last.count++] = msg;
+		last.bytes += msgBytes;
+		
+		size++;
+		bytes += msgBytes;
+	}
+	
+	private void evictOldSegments() {
+		// at least maxMessages are kept unless they take more than maxBytes, the byte
+		// limit wins; the segment being filled is never dropped
+		while (segments.size() > 1) {
+			Segment oldest = segments.peekFirst();
+			if (size - oldest.count < maxMessages && bytes <= maxBytes)
+				break;
+			
+			segments.removeFirst();
+			firstIndex += oldest.count;
+			size       -= oldest.count;
+			bytes      -= oldest.bytes;
+		}
+	}
+	
+	public static long estimateSize(ChatMessage msg) {
+		// object headers and references plus two bytes per char
+		long chars = 0;
+		if (msg.getSenderName() != null)
+			chars += msg.getSenderName().length();
+		if (msg.getMessageText() != null)
+			chars += msg.getMessageText().length();
+		
+		return 64 + 2 * chars;
+	}
+	
+	
+	
 	public ChatMessage[] getAllMessages() {
-		ChatMessage[] all = new ChatMessage[messages.size()];
-		messages.toArray(all);
-		return all;
+		return getMessages(firstIndex, size);
+	}
+	
+	public ChatMessage[] getLastMessages(int maxCount) {
+		int count = Math.min(Math.max(maxCount, 0), size);
+		return getMessages(getNextIndex() - count, count);
+	}
+	
+	// Messages with index in [fromIndex, fromIndex + maxCount) that are still retained
+	public ChatMessage[] getMessages(long fromIndex, int maxCount) {
+		long start = Math.max(fromIndex, firstIndex);
+		long end   = Math.min(fromIndex + Math.max(maxCount, 0), getNextIndex());
+		if (start >= end)
+			return new ChatMessage[0];
+		
+		ChatMessage[] result = new ChatMessage[(int) (end - start)];
+		int  copied       = 0;
+		long segmentStart = firstIndex;
+		
+		for (Segment segment : segments) {
+			long segmentEnd = segmentStart + segment.count;
+			
+			if (segmentEnd > start && segmentStart < end) {
+				int from  = (int) (Math.max(start, segmentStart) - segmentStart);
+				int to    = (int) (Math.min(end, segmentEnd) - segmentStart);
+				System.arraycopy(segment.messages, from, result, copied, to - from);
+				copied += to - from;
+			}
+			
+			if (segmentEnd >= end)
+				break;
+			segmentStart = segmentEnd;
+		}
+		
+		return result;
 	}
 	
 	public int getSize() {
-		return messages.size();
+		return size;
+	}
+	
+	public long getByteSize() {
+		return bytes;
+	}
+	
+	public long getFirstIndex() {
+		return firstIndex;
+	}
+	
+	public long getNextIndex() {
+		return firstIndex + size;
+	}
+	
+	
+	
+	private static class Segment {
+		private ChatMessage[] messages;
+		private int           count;
+		private long          bytes;
+		
+		public Segment(int capacity) {
+			messages = new ChatMessage[capacity];
+			count    = 0;
+			bytes    = 0;
+		}
 	}
-}
\ No newline at end of file
+}
@@ -5,14 +5,23 @@ import java.io.*;
 // Immutable
 public final class ChatMessage
 implements Serializable {
-	private static final long serialVersionUID = 1L;
+	// 2 since messages carry a sequence, an older peer would read it as 0
+	private static final long serialVersionUID = 2L;
+	
+	public static final long UNSEQUENCED = -1;
 	
 	private final String sender;
 	private final String message;
+	private final long   sequence;
 	
 	public ChatMessage(String username, String text) {
-		sender  = username;
-		message = text;
+		this(username, text, UNSEQUENCED);
+	}
+	
+	public ChatMessage(String username, String text, long seq) {
+		sender   = username;
+		message  = text;
+		sequence = seq;
 	}
 	
 	public String getSenderName() {
@@ -22,4 +31,17 @@ implements Serializable {
 	public String getMessageText() {
 		return message;
 	}
+	
+	// Position in the room history, assigned by the room when the message is broadcast
+	public long getSequence() {
+		return sequence;
+	}
+	
+	public boolean isSequenced() {
+		return sequence != UNSEQUENCED;
+	}
+	
+	public ChatMessage withSequence(long seq) {
+		return new ChatMessage(sender, message, seq);
+	}
 }
\ No newline at end of file
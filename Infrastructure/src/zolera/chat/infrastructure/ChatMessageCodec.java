@@ -0,0 +1,175 @@
+package zolera.chat.infrastructure;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Compact encoding of a batch of messages:
+//   varint count, varint senders, senders as strings,
+//   varlong first sequence + 1, then per message
+//   varint sender index, zigzag varlong sequence gap, text as string
+// Strings are varint (UTF-8 length + 1) followed by the bytes, 0 means null.
+public final class ChatMessageCodec {
+	
+	// We don't expect instantiation of this class
+	private ChatMessageCodec() {}
+	
+	public static byte[] encode(ChatMessage[] batch) {
+		Output out = new Output(32 + 24 * batch.length);
+		
+		// intern sender names, a batch usually comes from a handful of users
+		Map<String, Integer> senderIds = new HashMap<>();
+		List<String>         senders   = new ArrayList<>();
+		int[]                senderOf  = new int[batch.length];
+		
+		for (int m = 0; m < batch.length; m++) {
+			String  sender = batch[m].getSenderName();
+			Integer id     = senderIds.get(sender);
+			
+			if (id == null) {
+				id = senders.size();
+				senderIds.put(sender, id);
+				senders.add(sender);
+			}
+			senderOf[m] = id;
+		}
+		
+		out.writeVarInt(batch.length);
+		out.writeVarInt(senders.size());
+		for (String sender : senders)
+			out.writeString(sender);
+		
+		long previous = (batch.length == 0) ? ChatMessage.UNSEQUENCED : batch[0].getSequence() - 1;
+		out.writeVarLong(previous + 2); // first sequence + 1, never negative
+		
+		for (int m = 0; m < batch.length; m++) {
+			long sequence = batch[m].getSequence();
+			
+			// consecutive sequences cost a single zero byte
+			out.writeVarInt(senderOf[m]);
+			out.writeVarLong(zigzag(sequence - previous - 1));
+			out.writeString(batch[m].getMessageText());
+			previous = sequence;
+		}
+		
+		return out.toByteArray();
+	}
+	
+	public static ChatMessage[] decode(byte[] data)
+	throws IOException {
+		Input in = new Input(data);
+		
+		int count = in.readVarInt();
+		int senderCount = in.readVarInt();
+		// every message takes at least three bytes, a larger count is not allocated for
+		if (count < 0 || count > data.length / 3 || senderCount < 0 || senderCount > count)
+			throw new StreamCorruptedException("Invalid batch header");
+		
+		String[] senders = new String[senderCount];
+		for (int s = 0; s < senderCount; s++)
+			senders[s] = in.readString();
+		
+		long previous = in.readVarLong() - 2;
+		ChatMessage[] batch = new ChatMessage[count];
+		
+		for (int m = 0; m < count; m++) {
+			int sender = in.readVarInt();
+			if (sender < 0 || sender >= senderCount)
+				throw new StreamCorruptedException("Invalid sender index " + sender);
+			
+			long   sequence = previous + 1 + unzigzag(in.readVarLong());
+			String text     = in.readString();
+			
+			batch[m] = new ChatMessage(senders[sender], text, sequence);
+			previous = sequence;
+		}
+		
+		return batch;
+	}
+	
+	
+	
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	private static class Output
+	extends ByteArrayOutputStream {
+		public Output(int size) {
+			super(size);
+		}
+		
+		public void writeVarInt(int value) {
+			writeVarLong(value & 0xFFFFFFFFL);
+		}
+		
+		public void writeVarLong(long value) {
+			while ((value & ~0x7FL) != 0) {
+				write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+		
+		public void writeString(String value) {
+			if (value == null) {
+				writeVarInt(0);
+				return;
+			}
+			
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(bytes.length + 1);
+			write(bytes, 0, bytes.length);
+		}
+	}
+	
+	private static class Input {
+		private byte[] data;
+		private int    position;
+		
+		public Input(byte[] bytes) {
+			data     = bytes;
+			position = 0;
+		}
+		
+		public int readVarInt()
+		throws IOException {
+			long value = readVarLong();
+			if (value < 0 || value > Integer.MAX_VALUE)
+				throw new StreamCorruptedException("Varint out of range");
+			return (int) value;
+		}
+		
+		public long readVarLong()
+		throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (position >= data.length)
+					throw new EOFException("Truncated message batch");
+				
+				byte b = data[position++];
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new StreamCorruptedException("Varint too long");
+		}
+		
+		public String readString()
+		throws IOException {
+			int length = readVarInt() - 1;
+			if (length < 0)
+				return null;
+			if (length > data.length - position)
+				throw new EOFException("Truncated message batch");
+			
+			String value = new String(data, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return value;
+		}
+	}
+}
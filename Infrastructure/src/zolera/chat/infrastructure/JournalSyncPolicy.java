@@ -0,0 +1,7 @@
+package zolera.chat.infrastructure;
+
+// When a room journal forces its appended messages to disk
+public enum JournalSyncPolicy {
+	NONE,    // leave it to the operating system, a crash of the machine may lose recent messages
+	BATCH    // once per broadcast batch, before the batch is fanned out to clients
+}
@@ -0,0 +1,135 @@
+package zolera.chat.infrastructure;
+
+import java.io.*;
+import java.util.*;
+
+// Unit of transfer for messages between servers and clients. Written with
+// ChatMessageCodec unless the compact wire format is switched off in the
+// configuration, reading accepts either format.
+//
+// The encoding is done once and kept, so a batch handed to every client of
+// a room is encoded a single time no matter how many times it is written.
+// Batches joined with concat() reuse the encodings of their parts.
+public final class MessageBatch
+implements Externalizable {
+	private static final long serialVersionUID = 1L;
+	
+	private static final byte FORMAT_SERIALIZED = 0;
+	private static final byte FORMAT_COMPACT    = 1;
+	
+	private ChatMessage[] messages;
+	private transient List<MessageBatch> parts;  // null unless built by concat()
+	private transient volatile byte[][] encoded;
+	
+	// Required by Externalizable, not meant to be called directly
+	public MessageBatch() {
+		this(new ChatMessage[0]);
+	}
+	
+	public MessageBatch(ChatMessage[] batch) {
+		if (batch == null)
+			throw new IllegalArgumentException("Expecting a batch");
+		
+		messages = batch;
+		parts    = null;
+		encoded  = null;
+	}
+	
+	public static MessageBatch concat(List<MessageBatch> batches) {
+		if (batches.size() == 1)
+			return batches.get(0);
+		
+		int count = 0;
+		for (MessageBatch batch : batches)
+			count += batch.size();
+		
+		ChatMessage[] all = new ChatMessage[count];
+		int offset = 0;
+		for (MessageBatch batch : batches) {
+			System.arraycopy(batch.messages, 0, all, offset, batch.messages.length);
+			offset += batch.messages.length;
+		}
+		
+		MessageBatch joined = new MessageBatch(all);
+		joined.parts = new ArrayList<>(batches);
+		return joined;
+	}
+	
+	public ChatMessage[] getMessages() {
+		return messages;
+	}
+	
+	public int size() {
+		return messages.length;
+	}
+	
+	
+	
+	// Encodes now so that writing later, possibly from many threads at once, only copies bytes
+	public byte[][] encode() {
+		byte[][] chunks = encoded;
+		if (chunks != null)
+			return chunks;
+		
+		synchronized(this) {
+			if (encoded != null)
+				return encoded;
+			
+			if (parts == null)
+				chunks = new byte[][] {ChatMessageCodec.encode(messages)};
+			else {
+				List<byte[]> joined = new ArrayList<>();
+				for (MessageBatch part : parts)
+					joined.addAll(Arrays.asList(part.encode()));
+				chunks = joined.toArray(new byte[joined.size()][]);
+			}
+			
+			encoded = chunks;
+			return chunks;
+		}
+	}
+	
+	@Override
+	public void writeExternal(ObjectOutput out)
+	throws IOException {
+		if (ServerConfiguration.getGlobal().isCompactWireFormat()) {
+			out.writeByte(FORMAT_COMPACT);
+			WireProtocol.writeBatch(out, this);
+		}
+		else {
+			out.writeByte(FORMAT_SERIALIZED);
+			out.writeObject(messages);
+		}
+	}
+	
+	@Override
+	public void readExternal(ObjectInput in)
+	throws IOException, ClassNotFoundException {
+		byte format = in.readByte();
+		
+		// same layout and limits as a batch in an NIO frame
+		if (format == FORMAT_COMPACT)
+			messages = WireProtocol.readBatch(in).messages;
+		else if (format == FORMAT_SERIALIZED)
+			messages = readMessages(in);
+		else
+			throw new StreamCorruptedException("Unknown message batch format " + format);
+		
+		parts   = null;
+		encoded = null;
+	}
+	
+	// The delivery path takes every message as it is, neither the array nor one of them may be missing
+	private static ChatMessage[] readMessages(ObjectInput in)
+	throws IOException, ClassNotFoundException {
+		ChatMessage[] read = (ChatMessage[]) in.readObject();
+		if (read == null)
+			throw new InvalidObjectException("Message batch without messages");
+		
+		for (int m = 0; m < read.length; m++)
+			if (read[m] == null)
+				throw new InvalidObjectException("Message batch with a null message at " + m);
+		
+		return read;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,58 @@
+package zolera.chat.infrastructure;
+
+import java.util.regex.*;
+
+// Immutable, checks user and room names. The regex is compiled once, and names
+// made of word characters (plus a few literal extras) up to a maximum length are
+// checked with a loop over the characters instead, the common case on join.
+public final class NameValidator {
+	private final Pattern pattern;
+	private final int     maxLength;
+	private final String  extraChars;
+	private final boolean wordCharacters;
+	
+	private NameValidator(String regex, int maxLen, String extra, boolean words) {
+		pattern        = Pattern.compile(regex);
+		maxLength      = maxLen;
+		extraChars     = extra;
+		wordCharacters = words;
+	}
+	
+	// Same as ^[\w<extra>]{1,maxLength}$, \w being [a-zA-Z_0-9]. The extras are
+	// literal characters that need no escaping in a character class, e.g. a space
+	public static NameValidator wordCharacters(int maxLength, String extra) {
+		String regex = extra.isEmpty() ? "^\\w{1," + maxLength + "}$" : "^[\\w" + extra + "]{1," + maxLength + "}$";
+		return new NameValidator(regex, maxLength, extra, true);
+	}
+	
+	public static NameValidator pattern(String regex) {
+		return new NameValidator(regex, -1, "", false);
+	}
+	
+	public String getPattern() {
+		return pattern.pattern();
+	}
+	
+	public boolean isValid(String name) {
+		if (name == null)
+			return false;
+		if (!wordCharacters)
+			return pattern.matcher(name).matches();
+		
+		int length = name.length();
+		if (length == 0 || length > maxLength)
+			return false;
+		
+		for (int c = 0; c < length; c++)
+			if (!isNameChar(name.charAt(c)))
+				return false;
+		
+		return true;
+	}
+	
+	private boolean isNameChar(char ch) {
+		if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_')
+			return true;
+		return extraChars.indexOf(ch) >= 0;
+	}
+}
@@ -0,0 +1,109 @@
+package zolera.chat.infrastructure;
+
+import java.io.*;
+import java.util.*;
+
+// Immutable, a change to the users present in a room. A snapshot lists every
+// user and replaces what the receiver had, a delta only the users that joined
+// or left since the previous version. Versions grow by one per delta, per server.
+public final class PresenceUpdate
+implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	private static final String[] NO_USERS = new String[0];
+	
+	private final boolean  snapshot;
+	private final long     version;
+	private final String[] joined;
+	private final String[] left;
+	
+	private PresenceUpdate(boolean isSnapshot, long ver, String[] joinedUsers, String[] leftUsers) {
+		snapshot = isSnapshot;
+		version  = ver;
+		joined   = joinedUsers;
+		left     = leftUsers;
+	}
+	
+	public static PresenceUpdate snapshot(long version, Collection<String> users) {
+		return new PresenceUpdate(true, version, users.toArray(NO_USERS), NO_USERS);
+	}
+	
+	public static PresenceUpdate delta(long version, Collection<String> joinedUsers, Collection<String> leftUsers) {
+		return new PresenceUpdate(false, version, joinedUsers.toArray(NO_USERS), leftUsers.toArray(NO_USERS));
+	}
+	
+	public boolean isSnapshot() {
+		return snapshot;
+	}
+	
+	public long getVersion() {
+		return version;
+	}
+	
+	// Every user present for a snapshot
+	public String[] getJoined() {
+		return joined.clone();
+	}
+	
+	public String[] getLeft() {
+		return left.clone();
+	}
+	
+	// A single update with the effect of this one followed by the later one
+	public PresenceUpdate merge(PresenceUpdate later) {
+		if (later.snapshot)
+			return later;
+		
+		Set<String> mergedJoined = new LinkedHashSet<>(Arrays.asList(joined));
+		Set<String> mergedLeft   = new LinkedHashSet<>(Arrays.asList(left));
+		for (String user : later.joined) {
+			mergedLeft.remove(user);
+			mergedJoined.add(user);
+		}
+		for (String user : later.left) {
+			mergedJoined.remove(user);
+			if (!snapshot)
+				mergedLeft.add(user);
+		}
+		
+		return new PresenceUpdate(snapshot, later.version, mergedJoined.toArray(NO_USERS), mergedLeft.toArray(NO_USERS));
+	}
+	
+	
+	
+	public void write(DataOutput out)
+	throws IOException {
+		out.writeBoolean(snapshot);
+		out.writeLong(version);
+		writeUsers(out, joined);
+		writeUsers(out, left);
+	}
+	
+	public static PresenceUpdate read(DataInput in)
+	throws IOException {
+		boolean  isSnapshot = in.readBoolean();
+		long     ver        = in.readLong();
+		String[] joinedUsers = readUsers(in);
+		String[] leftUsers   = readUsers(in);
+		return new PresenceUpdate(isSnapshot, ver, joinedUsers, leftUsers);
+	}
+	
+	private static void writeUsers(DataOutput out, String[] users)
+	throws IOException {
+		out.writeInt(users.length);
+		for (String user : users)
+			WireProtocol.writeString(out, user);
+	}
+	
+	private static String[] readUsers(DataInput in)
+	throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > WireProtocol.MAX_FRAME_BYTES / 4)
+			throw new StreamCorruptedException("Invalid user count " + count);
+		
+		String[] users = new String[count];
+		for (int u = 0; u < count; u++)
+			users[u] = WireProtocol.readString(in);
+		return users;
+	}
+}
@@ -4,9 +4,13 @@ import java.rmi.*;
 
 public interface RemoteClientModel
 extends Remote {
-	public void receive(ChatMessage[] batch)
+	public void receive(MessageBatch batch)
 	throws RemoteException;
 	
-	public void chatlog(ChatMessage[] batch)
+	public void chatlog(MessageBatch batch)
+	throws RemoteException;
+	
+	// Users present in the room, a snapshot on join and versioned deltas after it
+	public void presence(PresenceUpdate update)
 	throws RemoteException;
 }
\ No newline at end of file
@@ -7,6 +7,7 @@ extends Remote {
 	public static final int MESSAGE_SUBMITTED     = 100;
 	public static final int SUCCESSFUL_JOIN       = 200;
 	public static final int ROOM_IS_FULL          = 210;
+	public static final int LEASE_RENEWED         = 300;
 	public static final int VALIDITY_CHECK_FAILED = 1_000_001;
 	public static final int ERROR_ON_CLIENT   = 1_000_002;
 	
@@ -16,15 +17,54 @@ extends Remote {
 	public int submit(RemoteClientModel clientRef, ChatMessage msg)
 	throws RemoteException;
 	
-	public void broadcast(ChatMessage[] batch)
+	// Several messages of the client in one call, added to the room in order. One code
+	// per message, as submit() would return it, a rejected message does not stop the rest
+	public int[] submitBatch(RemoteClientModel clientRef, MessageBatch batch)
 	throws RemoteException;
 	
-	public void share(ChatMessage[] batch)
+	// Keeps the client in the room, one that renews nothing for the lease time is removed.
+	// VALIDITY_CHECK_FAILED if the client is not in the room, e.g. its lease expired already
+	public int renew(RemoteClientModel clientRef)
 	throws RemoteException;
-
-	public void setMaster(int masterId)
+	
+	// Server hosting the room, reference() may have redirected the client to another one
+	public int getServerId()
+	throws RemoteException;
+	
+	// Up to maxCount messages with sequence numbers from fromSequence onwards
+	public MessageBatch history(long fromSequence, int maxCount)
+	throws RemoteException;
+	
+	// Server to server batches travel in numbered frames over a channel, several at a
+	// time. Both calls return the last frame of the channel that was applied with all
+	// those before it, a frame seen already is only acknowledged again
+	
+	// Master to followers, messages already ordered. orderedShares holds, per server,
+	// the id of its last share that made it into the order. A follower holds the batch
+	// back from its clients until committedSequence, or a later heartbeat, is past it
+	public long broadcast(int masterId, long term, long channel, long frame, MessageBatch batch, long[] orderedShares, long committedSequence)
+	throws RemoteException;
+	
+	// Follower to master, messages to be ordered. Ids grow per origin server,
+	// the master ignores an id it has ordered already
+	public long share(int originId, long channel, long frame, long shareId, MessageBatch batch)
+	throws RemoteException;
+	
+	// Any server to the others, its own users joining and leaving. Entries are
+	// sessions, a user listed twice has two. A snapshot replaces what the origin had
+	public long presence(int originId, long channel, long frame, PresenceUpdate update)
+	throws RemoteException;
+	
+	// Returns the master known by the room, or -1 if there is none yet
+	public int registerRoom(int serverId, RemoteRoomModel remoteRoom)
+	throws RemoteException;
+	
+	// Master to followers, returns the term of the follower. A newer term deposes the master.
+	// nextSequence follows the last message committed by the master
+	public long heartbeat(int masterId, long term, long nextSequence)
 	throws RemoteException;
 	
-	public boolean registerRoom(int serverId, RemoteRoomModel remoteRoom)
+	// Granted at most once per term, and only to a candidate with every message this room has
+	public boolean requestVote(int candidateId, long term, long nextSequence)
 	throws RemoteException;
 }
@@ -4,6 +4,14 @@ import java.rmi.*;
 
 public interface RemoteServerModel
 extends Remote {
+	// For clients, may answer with the room on a less loaded server that replicates it
 	public RemoteRoomModel reference(String roomname)
 	throws RemoteException;
+	
+	// For other servers, always the room on this server
+	public RemoteRoomModel referenceLocal(String roomname)
+	throws RemoteException;
+	
+	public ServerLoad getLoad()
+	throws RemoteException;
 }
\ No newline at end of file
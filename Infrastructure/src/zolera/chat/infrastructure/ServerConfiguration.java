@@ -18,17 +18,57 @@ public final class ServerConfiguration {
 	
 	private final String   serverRegisteredName;
 	private final int      maxUsernameLength;
-	private final String   usernamePattern;
+	private final NameValidator usernameValidator;
 	private final int      maxRoomnameLength;
-	private final String   roomnamePattern;
+	private final NameValidator roomnameValidator;
 	private final String   clientTerminationString;
 	private final String   defaultRoomname;
 	private final int      maxRoomCapacity;
 	private final int      initialChatLogCapacity;
+	private final int      chatLogSegmentCapacity;
+	private final int      chatLogMaxMessages;
+	private final long     chatLogMaxBytes;
+	private final int      joinReplayMessages;
+	private final boolean  compactWireFormat;
+	private final int      maxHistoryPageSize;
+	private final int      transcriptWindowMessages;
+	private final int      maxSubmitBatchSize;
+	private final String   clientHistoryString;
+	private final boolean  journalEnabled;
+	private final String   journalDirectory;
+	private final int      journalSegmentBytes;
+	private final long     journalMaxBytes;
+	private final JournalSyncPolicy journalSyncPolicy;
 	private final int      initialMessageListCapacity;
-	private final long     sleepTimeRoomConsumerThreadMillis;
+	private final long     roomBatchingWindowMillis;
+	private final int      roomRegistryShards;
+	private final int      roomSchedulerThreads;
+	private final long     roomIdleTimeoutMillis;
+	private final long     roomEvictionSweepMillis;
 	private final long     waitReadyTimeoutMillis;
+	private final int      clientOutboundQueueCapacity;
+	private final long     maxClientLagMillis;
+	private final BackpressurePolicy clientBackpressurePolicy;
+	private final boolean  fanoutVirtualThreads;
+	private final int      fanoutPoolSize;
+	private final long     fanoutCallDeadlineMillis;
 	private final String   systemMessagesUsername;
+	private final boolean  replicationEnabled;
+	private final long     heartbeatIntervalMillis;
+	private final long     masterTimeoutMillis;
+	private final long     electionStaggerMillis;
+	private final int      replicationWindow;
+	private final long     loadExchangeMillis;
+	private final double   loadRedirectMargin;
+	private final double   loadRedirectMinDifference;
+	private final TransportType transport;
+	private final int      nioPortOffset;
+	private final int      nioWorkerThreads;
+	private final long     nioRequestTimeoutMillis;
+	private final long     clientProbeTimeoutMillis;
+	private final long     clientHealthCheckMillis;
+	private final long     clientLeaseMillis;
+	private final long     leaseTickMillis;
 	private final String[] registryAddressesList;
 	
 	private ServerConfiguration() {
@@ -41,17 +81,57 @@ public final class ServerConfiguration {
 		default:
 			serverRegisteredName              = "ZoleraChatServer";
 			maxUsernameLength                 = 15;
-			usernamePattern                   = "^\\w{1," + maxUsernameLength + "}$";
+			usernameValidator                 = NameValidator.wordCharacters(maxUsernameLength, "");
 			maxRoomnameLength                 = 30;
-			roomnamePattern                   = "^[\\w ]{1," + maxRoomnameLength + "}$";
+			roomnameValidator                 = NameValidator.wordCharacters(maxRoomnameLength, " ");
 			clientTerminationString           = "exit zolerachat";
 			defaultRoomname                   = "Default";
 			maxRoomCapacity                   = 10;
 			initialChatLogCapacity            = 100;
+			chatLogSegmentCapacity            = 256;
+			chatLogMaxMessages                = 10_000;
+			chatLogMaxBytes                   = 4L * 1024 * 1024;
+			joinReplayMessages                = 100;
+			compactWireFormat                 = true;
+			maxHistoryPageSize                = 200;
+			transcriptWindowMessages          = 5 * maxHistoryPageSize;
+			maxSubmitBatchSize                = 100;
+			clientHistoryString               = "/history";
+			journalEnabled                    = true;
+			journalDirectory                  = "journal";
+			journalSegmentBytes               = 16 * 1024 * 1024;
+			journalMaxBytes                   = 16L * journalSegmentBytes;
+			journalSyncPolicy                 = JournalSyncPolicy.BATCH;
 			initialMessageListCapacity          = 5 * maxRoomCapacity;
-			sleepTimeRoomConsumerThreadMillis = 100;
+			roomBatchingWindowMillis          = 0;
+			roomRegistryShards                = 16;
+			roomSchedulerThreads              = Runtime.getRuntime().availableProcessors();
+			roomIdleTimeoutMillis             = 5 * 60_000;
+			roomEvictionSweepMillis           = 30_000;
 			waitReadyTimeoutMillis            = 5_000;
+			clientOutboundQueueCapacity       = 20 * initialMessageListCapacity;
+			maxClientLagMillis                = 10_000;
+			clientBackpressurePolicy          = BackpressurePolicy.DISCONNECT;
+			fanoutVirtualThreads              = true;
+			fanoutPoolSize                    = 4 * maxRoomCapacity;
+			fanoutCallDeadlineMillis          = 5_000;
 			systemMessagesUsername            = "ZoleraChatSys";
+			replicationEnabled                = true;
+			heartbeatIntervalMillis           = 1_000;
+			masterTimeoutMillis               = 3 * heartbeatIntervalMillis;
+			electionStaggerMillis             = 500;
+			replicationWindow                 = 8;
+			loadExchangeMillis                = 2_000;
+			loadRedirectMargin                = 0.25;
+			loadRedirectMinDifference         = 4;
+			transport                         = TransportType.RMI;
+			nioPortOffset                     = 100;
+			nioWorkerThreads                  = 4;
+			nioRequestTimeoutMillis           = 10_000;
+			clientProbeTimeoutMillis          = 2_000;
+			clientHealthCheckMillis           = 2_000;
+			clientLeaseMillis                 = 5 * clientHealthCheckMillis;
+			leaseTickMillis                   = 250;
 			registryAddressesList             = new String[]{
 					              					"localhost:1099",
 					              					"localhost:1001",
@@ -72,7 +152,12 @@ public final class ServerConfiguration {
 	}
 	
 	public String getUsernamePattern() {
-		return usernamePattern;
+		return usernameValidator.getPattern();
+	}
+	
+	// Precompiled, use this rather than matching the pattern on every call
+	public boolean isValidUsername(String username) {
+		return usernameValidator.isValid(username);
 	}
 	
 	public int getMaxRoomnameLength() {
@@ -80,7 +165,11 @@ public final class ServerConfiguration {
 	}
 	
 	public String getRoomnamePattern() {
-		return roomnamePattern;
+		return roomnameValidator.getPattern();
+	}
+	
+	public boolean isValidRoomname(String roomname) {
+		return roomnameValidator.isValid(roomname);
 	}
 	
 	public String getClientTerminationString() {
@@ -99,22 +188,198 @@ public final class ServerConfiguration {
 		return initialChatLogCapacity;
 	}
 	
+	public int getChatLogSegmentCapacity() {
+		return chatLogSegmentCapacity;
+	}
+	
+	public int getChatLogMaxMessages() {
+		return chatLogMaxMessages;
+	}
+	
+	public long getChatLogMaxBytes() {
+		return chatLogMaxBytes;
+	}
+	
+	public int getJoinReplayMessages() {
+		return joinReplayMessages;
+	}
+	
+	public boolean isCompactWireFormat() {
+		return compactWireFormat;
+	}
+	
+	public int getMaxHistoryPageSize() {
+		return maxHistoryPageSize;
+	}
+	
+	// Messages a chat view keeps in its document, the rest is shown again from the log on scroll-back
+	public int getTranscriptWindowMessages() {
+		return transcriptWindowMessages;
+	}
+	
+	// Messages a client sends in one submitBatch() call, the server rejects larger batches
+	public int getMaxSubmitBatchSize() {
+		return maxSubmitBatchSize;
+	}
+	
+	public String getClientHistoryString() {
+		return clientHistoryString;
+	}
+	
+	public boolean isJournalEnabled() {
+		return journalEnabled;
+	}
+	
+	public String getJournalDirectory() {
+		return journalDirectory;
+	}
+	
+	public int getJournalSegmentBytes() {
+		return journalSegmentBytes;
+	}
+	
+	// Disk kept per room, the oldest segments go first but never those the ChatLog reloads on restart
+	public long getJournalMaxBytes() {
+		return journalMaxBytes;
+	}
+	
+	public JournalSyncPolicy getJournalSyncPolicy() {
+		return journalSyncPolicy;
+	}
+	
 	public int getInitialMessageListCapacity() {
 		return initialMessageListCapacity;
 	}
 	
-	public long getSleepTimeRoomConsumerThreadMillis() {
-		return sleepTimeRoomConsumerThreadMillis;
+	public long getRoomBatchingWindowMillis() {
+		return roomBatchingWindowMillis;
+	}
+	
+	public int getRoomRegistryShards() {
+		return roomRegistryShards;
+	}
+	
+	public int getRoomSchedulerThreads() {
+		return roomSchedulerThreads;
+	}
+	
+	// Rooms without clients for this long are closed, they reopen from the journal
+	public long getRoomIdleTimeoutMillis() {
+		return roomIdleTimeoutMillis;
+	}
+	
+	public long getRoomEvictionSweepMillis() {
+		return roomEvictionSweepMillis;
 	}
 	
 	public long getWaitReadyTimeoutMillis() {
 		return waitReadyTimeoutMillis;
 	}
 	
+	public int getClientOutboundQueueCapacity() {
+		return clientOutboundQueueCapacity;
+	}
+	
+	public long getMaxClientLagMillis() {
+		return maxClientLagMillis;
+	}
+	
+	public BackpressurePolicy getClientBackpressurePolicy() {
+		return clientBackpressurePolicy;
+	}
+	
+	public boolean isFanoutVirtualThreads() {
+		return fanoutVirtualThreads;
+	}
+	
+	public int getFanoutPoolSize() {
+		return fanoutPoolSize;
+	}
+	
+	public long getFanoutCallDeadlineMillis() {
+		return fanoutCallDeadlineMillis;
+	}
+	
 	public String getSystemMessagesUsername() {
 		return systemMessagesUsername;
 	}
 	
+	// Rooms with the same name on every server in registryAddressesList share their messages
+	public boolean isReplicationEnabled() {
+		return replicationEnabled;
+	}
+	
+	public long getHeartbeatIntervalMillis() {
+		return heartbeatIntervalMillis;
+	}
+	
+	// Followers that miss the master's heartbeats for this long elect a new one
+	public long getMasterTimeoutMillis() {
+		return masterTimeoutMillis;
+	}
+	
+	// Extra wait per server id before standing as candidate, so lower ids go first
+	public long getElectionStaggerMillis() {
+		return electionStaggerMillis;
+	}
+	
+	// Batches sent to a peer ahead of its acknowledgements, 1 waits for each round trip
+	public int getReplicationWindow() {
+		return replicationWindow;
+	}
+	
+	// How often a server measures its load and asks the others for theirs
+	public long getLoadExchangeMillis() {
+		return loadExchangeMillis;
+	}
+	
+	// A new client is sent to another server only if its load score is lower by this fraction of
+	// ours, and by at least loadRedirectMinDifference (about that many clients), so they don't bounce
+	public double getLoadRedirectMargin() {
+		return loadRedirectMargin;
+	}
+	
+	public double getLoadRedirectMinDifference() {
+		return loadRedirectMinDifference;
+	}
+	
+	public TransportType getTransport() {
+		return transport;
+	}
+	
+	// The NIO endpoint listens on the registry port plus this offset
+	public int getNioPortOffset() {
+		return nioPortOffset;
+	}
+	
+	public int getNioWorkerThreads() {
+		return nioWorkerThreads;
+	}
+	
+	public long getNioRequestTimeoutMillis() {
+		return nioRequestTimeoutMillis;
+	}
+	
+	// Servers that do not answer a client's probe within this time are not chosen
+	public long getClientProbeTimeoutMillis() {
+		return clientProbeTimeoutMillis;
+	}
+	
+	// How often an idle client checks its server is still there, renewing its lease
+	public long getClientHealthCheckMillis() {
+		return clientHealthCheckMillis;
+	}
+	
+	// A client that did not renew its lease (or receive a batch) for this long is removed from the room
+	public long getClientLeaseMillis() {
+		return clientLeaseMillis;
+	}
+	
+	// Granularity of lease expiry, a lease ends up to one tick late
+	public long getLeaseTickMillis() {
+		return leaseTickMillis;
+	}
+	
 	public String getRegistryAddress(int index){
 		int length = registryAddressesList.length;
 		
@@ -0,0 +1,62 @@
+package zolera.chat.infrastructure;
+
+import java.io.*;
+
+// Immutable, load figures of one server as published by RemoteServerModel.getLoad()
+public final class ServerLoad
+implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	private final int    serverId;
+	private final int    connectedClients;
+	private final int    openRooms;
+	private final double messagesPerSecond;
+	private final int    fanoutQueueDepth;
+	
+	public ServerLoad(int id, int clients, int rooms, double messageRate, int queueDepth) {
+		serverId          = id;
+		connectedClients  = clients;
+		openRooms         = rooms;
+		messagesPerSecond = messageRate;
+		fanoutQueueDepth  = queueDepth;
+	}
+	
+	public int getServerId() {
+		return serverId;
+	}
+	
+	public int getConnectedClients() {
+		return connectedClients;
+	}
+	
+	public int getOpenRooms() {
+		return openRooms;
+	}
+	
+	// Messages delivered to the rooms of the server, over the last measurement interval
+	public double getMessagesPerSecond() {
+		return messagesPerSecond;
+	}
+	
+	// Messages waiting in the outbound queues of the clients, high when the fan-out falls behind
+	public int getFanoutQueueDepth() {
+		return fanoutQueueDepth;
+	}
+	
+	// Single figure to compare servers, about one unit per connected client.
+	// Busy rooms and a backlog in the fan-out add to it
+	public double getScore() {
+		return connectedClients + messagesPerSecond / 10 + fanoutQueueDepth / 100.0;
+	}
+	
+	// Estimate after sending one more client there, until its next figures arrive
+	public ServerLoad withExtraClient() {
+		return new ServerLoad(serverId, connectedClients + 1, openRooms, messagesPerSecond, fanoutQueueDepth);
+	}
+	
+	@Override
+	public String toString() {
+		return "server " + serverId + ": " + connectedClients + " clients in " + openRooms + " rooms, "
+		     + String.format("%.1f", messagesPerSecond) + " msg/s, " + fanoutQueueDepth + " queued";
+	}
+}
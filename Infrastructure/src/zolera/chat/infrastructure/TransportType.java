@@ -0,0 +1,7 @@
+package zolera.chat.infrastructure;
+
+// How clients talk to servers, servers always talk to each other over RMI
+public enum TransportType {
+	RMI,   // exported objects on both sides, the server calls back into the client
+	NIO    // a single framed TCP connection opened by the client
+}
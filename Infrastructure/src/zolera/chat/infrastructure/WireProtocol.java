@@ -0,0 +1,136 @@
+package zolera.chat.infrastructure;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Framing of the NIO transport. Every frame is
+//   [int length][byte opcode][int request id][payload]
+// where length counts everything after itself. Requests from the client carry
+// a fresh id that the server echoes in its RESPONSE or ERROR frame, pushes from
+// the server (RECEIVE, CHATLOG, PRESENCE) use id 0. Batches travel as the chunks of
+// MessageBatch.encode(), so a batch shared by many connections is encoded once.
+public final class WireProtocol {
+	public static final int  HEADER_BYTES    = 4 + 1 + 4;
+	public static final int  MAX_FRAME_BYTES = 16 * 1024 * 1024;
+	
+	// client to server
+	public static final byte OP_REFERENCE = 1;
+	public static final byte OP_JOIN      = 2;
+	public static final byte OP_SUBMIT    = 3;
+	public static final byte OP_HISTORY   = 4;
+	public static final byte OP_RENEW     = 5;
+	public static final byte OP_SUBMIT_BATCH = 6;
+	
+	// server to client
+	public static final byte OP_RESPONSE  = 20;
+	public static final byte OP_ERROR     = 21;
+	public static final byte OP_RECEIVE   = 22;
+	public static final byte OP_CHATLOG   = 23;
+	public static final byte OP_PRESENCE  = 24;
+	
+	// We don't expect instantiation of this class
+	private WireProtocol() {}
+	
+	
+	
+	public static ByteBuffer[] frame(byte opcode, int requestId, byte[] payload) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(1 + 4 + payload.length);
+		header.put(opcode);
+		header.putInt(requestId);
+		header.flip();
+		
+		return new ByteBuffer[] {header, ByteBuffer.wrap(payload)};
+	}
+	
+	public static ByteBuffer[] batchFrame(byte opcode, int requestId, MessageBatch batch) {
+		byte[][] chunks = batch.encode();
+		
+		int payloadBytes = 4;
+		for (byte[] chunk : chunks)
+			payloadBytes += 4 + chunk.length;
+		
+		ByteBuffer[] frame = new ByteBuffer[1 + 2 * chunks.length];
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + 4);
+		header.putInt(1 + 4 + payloadBytes);
+		header.put(opcode);
+		header.putInt(requestId);
+		header.putInt(chunks.length);
+		header.flip();
+		frame[0] = header;
+		
+		// the chunks are wrapped, not copied
+		for (int c = 0; c < chunks.length; c++) {
+			ByteBuffer length = ByteBuffer.allocate(4);
+			length.putInt(chunks[c].length);
+			length.flip();
+			frame[1 + 2 * c] = length;
+			frame[2 + 2 * c] = ByteBuffer.wrap(chunks[c]);
+		}
+		
+		return frame;
+	}
+	
+	// Same layout as the payload of batchFrame(), for a batch inside a request
+	public static void writeBatch(DataOutput out, MessageBatch batch)
+	throws IOException {
+		byte[][] chunks = batch.encode();
+		
+		out.writeInt(chunks.length);
+		for (byte[] chunk : chunks) {
+			out.writeInt(chunk.length);
+			out.write(chunk);
+		}
+	}
+	
+	public static MessageBatch readBatch(DataInput in)
+	throws IOException {
+		int chunkCount = in.readInt();
+		if (chunkCount < 0)
+			throw new StreamCorruptedException("Invalid chunk count " + chunkCount);
+		
+		List<ChatMessage> all = new ArrayList<>();
+		for (int c = 0; c < chunkCount; c++) {
+			int length = in.readInt();
+			if (length < 0 || length > MAX_FRAME_BYTES)
+				throw new StreamCorruptedException("Invalid chunk length " + length);
+			
+			byte[] chunk = new byte[length];
+			in.readFully(chunk);
+			all.addAll(Arrays.asList(ChatMessageCodec.decode(chunk)));
+		}
+		
+		return new MessageBatch(all.toArray(new ChatMessage[all.size()]));
+	}
+	
+	public static void writeString(DataOutput out, String value)
+	throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	public static String readString(DataInput in)
+	throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		if (length > MAX_FRAME_BYTES)
+			throw new StreamCorruptedException("Invalid string length " + length);
+		
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	public static DataInputStream payloadReader(byte[] payload) {
+		return new DataInputStream(new ByteArrayInputStream(payload));
+	}
+}
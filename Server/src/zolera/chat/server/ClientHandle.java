@@ -1,21 +1,253 @@
 package zolera.chat.server;
 
+import java.rmi.*;
+import java.util.*;
+import java.util.concurrent.Future;
+
 import zolera.chat.infrastructure.*;
 
 public class ClientHandle {
 	private String      username;
 	private RemoteClientModel clientRef;
+	private RoomModel   room;
+	private FanoutEngine engine;
+	
+	private Deque<MessageBatch>  outbound;
+	private MessageBatch         replay;
+	private PresenceUpdate       presence;
+	private int                  queuedMessages;
+	private long                 behindSince;
+	private int                  capacity;
+	private long                 maxLagMillis;
+	private BackpressurePolicy   policy;
+	private Runnable             drainTask;
+	private boolean              draining;
+	private boolean              closed;
+	
+	// renewed by the client and by every batch it takes, see LeaseWheel
+	private volatile long        leaseExpiry;
+	private long                 leaseMillis;
 	
-	public ClientHandle(String name, RemoteClientModel ref) {
+	public ClientHandle(String name, RemoteClientModel ref, RoomModel owner, FanoutEngine fanout, BackpressurePolicy backpressure) {
+		ServerConfiguration config = ServerConfiguration.getGlobal();
+		
 		username  = name;
 		clientRef = ref;
+		room      = owner;
+		engine    = fanout;
+		
+		outbound       = new ArrayDeque<>();
+		replay         = null;
+		presence       = null;
+		queuedMessages = 0;
+		behindSince    = -1;
+		capacity       = config.getClientOutboundQueueCapacity();
+		maxLagMillis   = config.getMaxClientLagMillis();
+		policy         = backpressure;
+		draining       = false;
+		closed         = false;
+		leaseMillis    = config.getClientLeaseMillis();
+		leaseExpiry    = System.currentTimeMillis() + leaseMillis;
+		drainTask      = new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
 	}
 	
 	public String getUsername() {
 		return username;
 	}
 	
+	public synchronized int getQueuedMessages() {
+		return queuedMessages;
+	}
+	
 	public RemoteClientModel getClientRef() {
 		return clientRef;
 	}
+	
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+	
+	public long getLeaseExpiry() {
+		return leaseExpiry;
+	}
+	
+	public void renewLease() {
+		leaseExpiry = System.currentTimeMillis() + leaseMillis;
+	}
+	
+	// Called by the lease wheel, the client went quiet without leaving
+	void expireLease() {
+		String reason = "no lease renewal within " + leaseMillis + " ms";
+		room.removeDeadClient(this, room.getRemovingUserException(this, reason, null));
+	}
+	
+	
+	
+	public synchronized void close() {
+		// a drain task blocked on a slow RMI call is left to finish on its own
+		closed = true;
+		outbound.clear();
+		replay         = null;
+		presence       = null;
+		queuedMessages = 0;
+	}
+	
+	
+	
+	// Only enqueues, the RMI call is done by a fan-out engine task
+	public synchronized void deliver(MessageBatch batch)
+	throws DeadClientException {
+		if (closed || batch == null || batch.size() == 0)
+			return;
+		
+		long now = System.currentTimeMillis();
+		if (policy == BackpressurePolicy.DISCONNECT && behindSince >= 0 && now - behindSince > maxLagMillis)
+			throw new DeadClientException("User '" + username + "' is more than " + maxLagMillis + " ms behind");
+		
+		outbound.add(batch);
+		queuedMessages += batch.size();
+		if (behindSince < 0)
+			behindSince = now;
+		
+		if (queuedMessages > capacity)
+			applyBackpressure();
+		
+		startDraining();
+	}
+	
+	// What a joining client starts from, sent ahead of the batches and deltas queued after it
+	public synchronized void deliverJoin(MessageBatch logTail, PresenceUpdate snapshot) {
+		if (closed)
+			return;
+		
+		replay   = logTail;
+		presence = snapshot;
+		startDraining();
+	}
+	
+	// Roster changes not sent yet are merged, the client only needs the latest state
+	public synchronized void deliverPresence(PresenceUpdate update) {
+		if (closed || update == null)
+			return;
+		
+		presence = (presence == null) ? update : presence.merge(update);
+		startDraining();
+	}
+	
+	// Caller holds the lock
+	private void startDraining() {
+		// at most one drain task per client, so batches keep their order
+		if (!draining) {
+			draining = true;
+			engine.execute(drainTask);
+		}
+	}
+	
+	private void applyBackpressure()
+	throws DeadClientException {
+		switch (policy) {
+		case DROP_OLDEST:
+			// whole batches are dropped, so the shared encoding of the rest stays usable
+			while (queuedMessages > capacity && outbound.size() > 1)
+				queuedMessages -= outbound.removeFirst().size();
+			
+			// a single batch larger than the queue keeps only its newest messages
+			if (queuedMessages > capacity) {
+				ChatMessage[] messages = outbound.removeFirst().getMessages();
+				if (capacity > 0)
+					outbound.addFirst(new MessageBatch(Arrays.copyOfRange(messages, messages.length - capacity, messages.length)));
+				queuedMessages = capacity;
+			}
+			break;
+		case COALESCE:
+			MessageBatch merged = takeAll();
+			outbound.add(merged);
+			queuedMessages = merged.size();
+			break;
+		case DISCONNECT:
+		default:
+			throw new DeadClientException("User '" + username + "' has more than " + capacity + " undelivered messages");
+		}
+	}
+	
+	private MessageBatch takeAll() {
+		// joined without encoding again, the parts keep their shared encodings
+		MessageBatch all = MessageBatch.concat(new ArrayList<>(outbound));
+		
+		outbound.clear();
+		queuedMessages = 0;
+		return all;
+	}
+	
+	
+	
+	private void drain() {
+		MessageBatch   history;
+		MessageBatch   batch;
+		PresenceUpdate update;
+		synchronized(this) {
+			if (closed || (outbound.isEmpty() && presence == null && replay == null)) {
+				draining = false;
+				return;
+			}
+			
+			// every batch queued since the last call goes out together
+			history  = replay;
+			batch    = outbound.isEmpty() ? null : takeAll();
+			update   = presence;
+			replay   = null;
+			presence = null;
+		}
+		
+		final ClientHandle handle = this;
+		Future<?> deadline = engine.startDeadline(new Runnable() {
+			@Override
+			public void run() {
+				String reason = "no answer within " + engine.getCallDeadlineMillis() + " ms";
+				room.removeDeadClient(handle, room.getRemovingUserException(handle, reason, null));
+			}
+		});
+		
+		try {
+			// the log a new client starts from, then the roster, so a message of a user who just joined finds the user listed
+			if (history != null)
+				clientRef.chatlog(history);
+			if (update != null)
+				clientRef.presence(update);
+			if (batch != null)
+				clientRef.receive(batch);
+		}
+		catch (RemoteException re) {
+			room.removeDeadClient(this, room.getRemovingUserException(this, "RMI layer", re));
+			return;
+		}
+		catch (Exception e) {
+			room.removeDeadClient(this, room.getRemovingUserException(this, "thrown exception on client code", e));
+			return;
+		}
+		finally {
+			deadline.cancel(false);
+		}
+		
+		// it answered, as good as a renewal
+		renewLease();
+		
+		synchronized(this) {
+			// delivery made progress, only whatever was queued meanwhile is behind
+			behindSince = outbound.isEmpty() ? -1 : System.currentTimeMillis();
+			
+			if (closed || (outbound.isEmpty() && presence == null)) {
+				draining = false;
+				return;
+			}
+		}
+		
+		// requeue instead of looping so other clients get a turn on a bounded pool
+		engine.execute(drainTask);
+	}
 }
@@ -0,0 +1,108 @@
+package zolera.chat.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+import zolera.chat.infrastructure.*;
+
+// Runs the client callbacks of every room, one task per client with pending messages
+public class FanoutEngine {
+	private ExecutorService          executor;
+	private ScheduledExecutorService watchdog;
+	private long                     callDeadlineMillis;
+	private boolean                  virtualThreads;
+	
+	public FanoutEngine() {
+		this(ServerConfiguration.getGlobal());
+	}
+	
+	public FanoutEngine(ServerConfiguration config) {
+		callDeadlineMillis = config.getFanoutCallDeadlineMillis();
+		executor           = null;
+		virtualThreads     = false;
+		
+		if (config.isFanoutVirtualThreads())
+			executor = createVirtualThreadExecutor();
+		
+		if (executor != null)
+			virtualThreads = true;
+		else
+			executor = createPlatformThreadExecutor(config.getFanoutPoolSize());
+		
+		watchdog = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("FanoutWatchdog"));
+	}
+	
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			// looked up reflectively so the server still runs on JDKs without virtual threads
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		}
+		catch (ReflectiveOperationException roe) {
+			// missing, or present but disabled as a preview feature
+			return null;
+		}
+	}
+	
+	private static ExecutorService createPlatformThreadExecutor(int poolSize) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+		                                                 new LinkedBlockingQueue<Runnable>(),
+		                                                 new DaemonThreadFactory("FanoutWorker"));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	public boolean isUsingVirtualThreads() {
+		return virtualThreads;
+	}
+	
+	public long getCallDeadlineMillis() {
+		return callDeadlineMillis;
+	}
+	
+	
+	
+	public void execute(Runnable task) {
+		try {
+			executor.execute(task);
+		}
+		catch (RejectedExecutionException ree) {
+			// engine already shut down, the server is terminating
+		}
+	}
+	
+	// Runs onTimeout unless the returned future is cancelled within the call deadline
+	public Future<?> startDeadline(Runnable onTimeout) {
+		try {
+			return watchdog.schedule(onTimeout, callDeadlineMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException ree) {
+			return new FutureTask<Void>(onTimeout, null);
+		}
+	}
+	
+	public void shutdown() {
+		watchdog.shutdownNow();
+		executor.shutdownNow();
+	}
+	
+	
+	
+	static class DaemonThreadFactory
+	implements ThreadFactory {
+		private String prefix;
+		private int    count;
+		
+		public DaemonThreadFactory(String name) {
+			prefix = name;
+			count  = 0;
+		}
+		
+		@Override
+		public synchronized Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, prefix + "-" + (count++));
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
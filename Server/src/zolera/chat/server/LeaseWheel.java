@@ -0,0 +1,102 @@
+package zolera.chat.server;
+
+import java.util.*;
+
+import zolera.chat.infrastructure.*;
+
+// Client leases of every room of this server, on a hashed timing wheel. Each
+// slot holds the clients whose lease ends within one tick of it, so a tick
+// only looks at a single slot. Renewing just moves the expiry forward: when
+// the slot comes up the client goes on to the slot of its new expiry, and a
+// client that left the room meanwhile is dropped there. Removing the expired
+// ones costs nothing per message and needs no failed broadcast to notice them.
+public class LeaseWheel {
+	private ServerConfiguration      config;
+	private RoomScheduler            scheduler;
+	private List<List<ClientHandle>> slots;
+	private long                     tickMillis;
+	private long                     nextTick;
+	private volatile boolean         stopped;
+	
+	public LeaseWheel(RoomScheduler roomScheduler) {
+		config     = ServerConfiguration.getGlobal();
+		scheduler  = roomScheduler;
+		tickMillis = Math.max(1, config.getLeaseTickMillis());
+		nextTick   = System.currentTimeMillis() / tickMillis;
+		stopped    = false;
+		
+		// one turn covers a whole lease, a renewed client is looked at about once per lease
+		int count = (int) (config.getClientLeaseMillis() / tickMillis) + 2;
+		slots = new ArrayList<>(count);
+		for (int s = 0; s < count; s++)
+			slots.add(new ArrayList<ClientHandle>());
+	}
+	
+	public void start() {
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (stopped)
+					return;
+				
+				advance(System.currentTimeMillis());
+				scheduler.schedule(this, tickMillis);
+			}
+		}, tickMillis);
+	}
+	
+	public void stop() {
+		stopped = true;
+	}
+	
+	// Once per client, the handle keeps its expiry up to date itself
+	public synchronized void add(ClientHandle handle) {
+		place(handle, handle.getLeaseExpiry(), nextTick);
+	}
+	
+	// Caller holds the lock. An expiry further than a turn away lands in an earlier slot, and moves on from there
+	private void place(ClientHandle handle, long expiry, long earliestTick) {
+		long tick = Math.max(earliestTick, expiry / tickMillis);
+		slots.get((int) (tick % slots.size())).add(handle);
+	}
+	
+	
+	
+	// Sweeps the slots up to the current time, returns the number of clients removed
+	public int advance(long nowMillis) {
+		List<ClientHandle> expired = new ArrayList<>();
+		
+		synchronized(this) {
+			long currentTick = nowMillis / tickMillis;
+			
+			// after a stall every slot is swept once, not once per tick missed
+			if (currentTick - nextTick >= slots.size())
+				nextTick = currentTick - slots.size() + 1;
+			
+			for (; nextTick <= currentTick; nextTick++) {
+				int                index = (int) (nextTick % slots.size());
+				List<ClientHandle> slot  = slots.get(index);
+				if (slot.isEmpty())
+					continue;
+				
+				slots.set(index, new ArrayList<ClientHandle>());
+				for (ClientHandle handle : slot) {
+					if (handle.isClosed())
+						continue; // left the room already
+					
+					long expiry = handle.getLeaseExpiry();
+					if (expiry <= nowMillis)
+						expired.add(handle);
+					else
+						place(handle, expiry, nextTick + 1);
+				}
+			}
+		}
+		
+		// outside our lock, removing a client takes the room's locks
+		for (ClientHandle handle : expired)
+			handle.expireLease();
+		
+		return expired.size();
+	}
+}
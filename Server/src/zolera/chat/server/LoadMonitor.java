@@ -0,0 +1,173 @@
+package zolera.chat.server;
+
+import java.rmi.*;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+
+import zolera.chat.infrastructure.*;
+
+// Load of this server and the last figures heard from the others. Every
+// loadExchangeMillis the server measures itself and asks each peer for its
+// load through the registry binding, reference() then sends new clients of a
+// replicated room to a clearly less loaded server. Figures that were not
+// refreshed for a few rounds are dropped, the peer is likely gone.
+public class LoadMonitor {
+	private ServerConfiguration config;
+	private int                 serverId;
+	private RoomRegistry        rooms;
+	private RoomScheduler       scheduler;
+	private FanoutEngine        fanout;
+	private volatile boolean    stopped;
+	
+	private ServerLoad[]        loads;
+	private long[]              receivedMillis;
+	private RemoteServerModel[] peerRefs;
+	private long                lastDelivered;
+	private long                lastSampleNanos;
+	
+	public LoadMonitor(int id, RoomRegistry registry, RoomScheduler roomScheduler, FanoutEngine engine) {
+		config    = ServerConfiguration.getGlobal();
+		serverId  = id;
+		rooms     = registry;
+		scheduler = roomScheduler;
+		fanout    = engine;
+		stopped   = false;
+		
+		int servers = config.getRegistryAddressesListLength();
+		loads          = new ServerLoad[servers];
+		receivedMillis = new long[servers];
+		peerRefs       = new RemoteServerModel[servers];
+		lastDelivered   = rooms.getDeliveredMessages();
+		lastSampleNanos = System.nanoTime();
+		loads[serverId] = new ServerLoad(serverId, 0, 0, 0, 0);
+	}
+	
+	public void start() {
+		final long intervalMillis = config.getLoadExchangeMillis();
+		
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (stopped)
+					return;
+				
+				measure();
+				for (int id = 0; id < loads.length; id++)
+					if (id != serverId)
+						exchange(id);
+				scheduler.schedule(this, intervalMillis);
+			}
+		}, intervalMillis);
+	}
+	
+	public void stop() {
+		stopped = true;
+	}
+	
+	public synchronized ServerLoad getLocalLoad() {
+		return loads[serverId];
+	}
+	
+	public synchronized ServerLoad getLoad(int id) {
+		return isFresh(id) ? loads[id] : null;
+	}
+	
+	
+	
+	private void measure() {
+		int  clients   = rooms.getClientCount();
+		int  open      = rooms.size();
+		int  queued    = rooms.getQueuedDeliveries();
+		long delivered = rooms.getDeliveredMessages();
+		long now       = System.nanoTime();
+		
+		synchronized(this) {
+			double seconds = (now - lastSampleNanos) / 1e9;
+			double rate    = (seconds <= 0) ? 0 : Math.max(0, delivered - lastDelivered) / seconds;
+			
+			lastDelivered   = delivered;
+			lastSampleNanos = now;
+			loads[serverId] = new ServerLoad(serverId, clients, open, rate, queued);
+		}
+	}
+	
+	// One fan-out task per peer, an unreachable one does not delay the others and keeps no figures
+	private void exchange(final int id) {
+		fanout.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ServerLoad load = lookupPeer(id).getLoad();
+					synchronized(LoadMonitor.this) {
+						loads[id]          = load;
+						receivedMillis[id] = System.currentTimeMillis();
+					}
+				}
+				catch (RemoteException | NotBoundException ex) {
+					synchronized(LoadMonitor.this) {
+						loads[id]    = null;
+						peerRefs[id] = null;
+					}
+				}
+			}
+		});
+	}
+	
+	private RemoteServerModel lookupPeer(int id)
+	throws RemoteException, NotBoundException {
+		synchronized(this) {
+			if (peerRefs[id] != null)
+				return peerRefs[id];
+		}
+		
+		String[] components = config.getRegistryAddress(id).split(":");
+		Registry registry   = LocateRegistry.getRegistry(components[0], Integer.parseInt(components[1]));
+		RemoteServerModel server = (RemoteServerModel) registry.lookup(config.getServerRegisteredName());
+		
+		synchronized(this) {
+			peerRefs[id] = server;
+		}
+		return server;
+	}
+	
+	// Caller holds the lock
+	private boolean isFresh(int id) {
+		if (id == serverId)
+			return true;
+		return loads[id] != null && System.currentTimeMillis() - receivedMillis[id] <= 3 * config.getLoadExchangeMillis();
+	}
+	
+	
+	
+	// Server that should take a new client of a replicated room, this one unless another is clearly less loaded
+	public synchronized int selectServer() {
+		double local = loads[serverId].getScore();
+		double limit = local - Math.max(config.getLoadRedirectMinDifference(), local * config.getLoadRedirectMargin());
+		
+		int    selected = serverId;
+		double lowest   = limit;
+		for (int id = 0; id < loads.length; id++) {
+			if (id == serverId || !isFresh(id))
+				continue;
+			
+			double score = loads[id].getScore();
+			if (score <= lowest) {
+				selected = id;
+				lowest   = score;
+			}
+		}
+		
+		return selected;
+	}
+	
+	// Counts the client there until its next figures arrive, so a burst of joins is not sent to one server
+	public synchronized void onRedirected(int id) {
+		if (loads[id] != null)
+			loads[id] = loads[id].withExtraClient();
+	}
+	
+	// Counts a client kept here until the next measurement, for the same reason
+	public synchronized void onAccepted() {
+		loads[serverId] = loads[serverId].withExtraClient();
+	}
+}
@@ -0,0 +1,360 @@
+package zolera.chat.server;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import zolera.chat.infrastructure.*;
+
+// Append-only on disk history of a room, split in memory-mapped segment files.
+// Every record is [int length][long sequence][int n][sender][int n][text] with
+// UTF-8 strings, a zero length marks the end of the written part of a segment.
+// Sequences are contiguous within a segment. Messages that never made it to
+// disk leave a gap between two segments, the one after it starts a new file.
+public class MessageJournal {
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int    INDEX_INTERVAL = 64;     // records between sparse index entries
+	private static final int    RECORD_HEADER  = 4 + 8 + 4 + 4;
+	
+	private File              directory;
+	private int               segmentBytes;
+	private long              maxBytes;
+	private int               keepMessages;
+	private JournalSyncPolicy syncPolicy;
+	
+	private List<Segment> segments;
+	private Segment       active;
+	private boolean       dirty;
+	
+	public MessageJournal(File dir, int segmentSize, long maxSize, int keepCount, JournalSyncPolicy policy)
+	throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create journal directory '" + dir + "'");
+		
+		directory    = dir;
+		segmentBytes = segmentSize;
+		maxBytes     = maxSize;
+		keepMessages = keepCount;
+		syncPolicy   = policy;
+		segments     = new ArrayList<>();
+		active       = null;
+		dirty        = false;
+		
+		recover();
+	}
+	
+	// One directory per room name and the other way round: lowercase letters and digits are
+	// kept, any other character becomes _ and four hex digits, also on case-insensitive disks
+	public static File getRoomDirectory(File journalRoot, String roomname) {
+		StringBuilder name = new StringBuilder(roomname.length() + 16);
+		for (int c = 0; c < roomname.length(); c++) {
+			char ch = roomname.charAt(c);
+			if ((ch >= 'a' && ch <= 'z') || (ch >= '0' && ch <= '9'))
+				name.append(ch);
+			else
+				name.append(String.format("_%04x", (int) ch));
+		}
+		
+		return new File(journalRoot, name.toString());
+	}
+	
+	public synchronized void setSyncPolicy(JournalSyncPolicy policy) {
+		syncPolicy = policy;
+	}
+	
+	public synchronized JournalSyncPolicy getSyncPolicy() {
+		return syncPolicy;
+	}
+	
+	
+	
+	private void recover()
+	throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null)
+			throw new IOException("Cannot list journal directory '" + directory + "'");
+		
+		List<Long> starts = new ArrayList<>();
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.endsWith(SEGMENT_SUFFIX))
+				continue;
+			
+			try {
+				starts.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+			}
+			catch (NumberFormatException nfe) {
+				// not one of ours
+			}
+		}
+		Collections.sort(starts);
+		
+		for (long start : starts) {
+			Segment segment = openSegment(start);
+			segment.scan();
+			segments.add(segment);
+		}
+		
+		if (!segments.isEmpty())
+			active = segments.get(segments.size() - 1);
+		
+		dropOldSegments(); // the limit may have been lowered since
+	}
+	
+	private Segment openSegment(long firstSequence)
+	throws IOException {
+		File file = new File(directory, String.format("%020d", firstSequence) + SEGMENT_SUFFIX);
+		
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			// the mapping stays valid after the channel is closed
+			FileChannel channel = raf.getChannel();
+			long size = Math.max(channel.size(), segmentBytes);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			return new Segment(file, firstSequence, buffer);
+		}
+	}
+	
+	
+	
+	public synchronized long getFirstSequence() {
+		return segments.isEmpty() ? 0 : segments.get(0).firstSequence;
+	}
+	
+	public synchronized long getNextSequence() {
+		return active == null ? 0 : active.nextSequence;
+	}
+	
+	// First sequence from which every message up to getNextSequence() is in the journal
+	public synchronized long getContiguousSequence() {
+		if (segments.isEmpty())
+			return 0;
+		
+		int s = segments.size() - 1;
+		while (s > 0 && segments.get(s - 1).nextSequence == segments.get(s).firstSequence)
+			s--;
+		return segments.get(s).firstSequence;
+	}
+	
+	// Messages must be sequenced and come after the last appended one, skipped sequences become a gap
+	public synchronized void append(ChatMessage[] batch)
+	throws IOException {
+		for (int m = 0; m < batch.length; m++) {
+			ChatMessage msg = batch[m];
+			if (active != null && msg.getSequence() < active.nextSequence)
+				throw new IOException("Message " + msg.getSequence() + " is in the journal already");
+			
+			byte[] sender = msg.getSenderName().getBytes(StandardCharsets.UTF_8);
+			byte[] text   = msg.getMessageText().getBytes(StandardCharsets.UTF_8);
+			int    length = RECORD_HEADER + sender.length + text.length;
+			
+			// keep room for the end marker after the record
+			if (length + 4 > segmentBytes)
+				throw new IOException("Message " + msg.getSequence() + " does not fit in a journal segment");
+			
+			if (active == null || msg.getSequence() != active.nextSequence
+			    || active.buffer.position() + length + 4 > active.buffer.capacity())
+				rollSegment(msg.getSequence());
+			
+			active.write(msg.getSequence(), sender, text, length);
+		}
+		
+		if (batch.length > 0)
+			dirty = true;
+	}
+	
+	private void rollSegment(long firstSequence)
+	throws IOException {
+		if (active != null)
+			active.buffer.force();
+		
+		active = openSegment(firstSequence);
+		segments.add(active);
+		dropOldSegments();
+	}
+	
+	private void dropOldSegments() {
+		long size = 0;
+		for (Segment segment : segments)
+			size += segment.buffer.capacity();
+		
+		// the active segment stays, and so do the segments holding the last keepMessages
+		while (segments.size() > 1 && size > maxBytes) {
+			Segment oldest = segments.get(0);
+			if (segments.get(1).firstSequence > active.nextSequence - keepMessages)
+				break;
+			
+			// the mapping goes with the last reference to the buffer, Linux lets the file go meanwhile
+			segments.remove(0);
+			size -= oldest.buffer.capacity();
+			if (!oldest.file.delete())
+				System.err.println("Error: (journal) Failed to delete segment '" + oldest.file + "'");
+		}
+	}
+	
+	// Group commit, called once per batch by the room consumer thread
+	public synchronized void commit() {
+		if (!dirty)
+			return;
+		
+		if (syncPolicy == JournalSyncPolicy.BATCH)
+			active.buffer.force();
+		dirty = false;
+	}
+	
+	public synchronized void close() {
+		if (active != null)
+			active.buffer.force();
+		
+		segments.clear();
+		active = null;
+	}
+	
+	
+	
+	// Up to maxCount messages with sequence numbers from fromSequence onwards
+	public synchronized ChatMessage[] read(long fromSequence, int maxCount) {
+		List<ChatMessage> result = new ArrayList<>(Math.max(0, Math.min(maxCount, 1024)));
+		long from = Math.max(fromSequence, getFirstSequence());
+		
+		for (int s = findSegment(from); s >= 0 && s < segments.size() && result.size() < maxCount; s++)
+			segments.get(s).read(from, maxCount - result.size(), result);
+		
+		return result.toArray(new ChatMessage[result.size()]);
+	}
+	
+	private int findSegment(long sequence) {
+		int low  = 0;
+		int high = segments.size() - 1;
+		int found = -1;
+		
+		// last segment starting at or before the sequence
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (segments.get(mid).firstSequence <= sequence) {
+				found = mid;
+				low   = mid + 1;
+			}
+			else
+				high = mid - 1;
+		}
+		
+		return found;
+	}
+	
+	
+	
+	private static class Segment {
+		private File             file;
+		private long             firstSequence;
+		private long             nextSequence;
+		private MappedByteBuffer buffer;
+		private long[]           indexSequences;
+		private int[]            indexOffsets;
+		private int              indexSize;
+		private int              records;
+		
+		public Segment(File segmentFile, long first, MappedByteBuffer mapped) {
+			file           = segmentFile;
+			firstSequence  = first;
+			nextSequence   = first;
+			buffer         = mapped;
+			indexSequences = new long[16];
+			indexOffsets   = new int[16];
+			indexSize      = 0;
+			records        = 0;
+		}
+		
+		// Finds the end of the written records after a restart
+		public void scan() {
+			int end = 0;
+			
+			while (end + 4 <= buffer.capacity()) {
+				int length = buffer.getInt(end);
+				if (length < RECORD_HEADER || end + length + 4 > buffer.capacity())
+					break; // end marker
+				
+				addRecord(buffer.getLong(end + 4), end);
+				end += length;
+			}
+			
+			buffer.position(end);
+		}
+		
+		public void write(long sequence, byte[] sender, byte[] text, int length) {
+			int offset = buffer.position();
+			
+			buffer.position(offset + 4);
+			buffer.putLong(sequence);
+			buffer.putInt(sender.length);
+			buffer.put(sender);
+			buffer.putInt(text.length);
+			buffer.put(text);
+			
+			// the length goes last, so a crash mid-write leaves the end marker in place
+			buffer.putInt(buffer.position(), 0);
+			buffer.putInt(offset, length);
+			addRecord(sequence, offset);
+		}
+		
+		private void addRecord(long sequence, int offset) {
+			if (records == 0)
+				firstSequence = sequence;
+			
+			if (records % INDEX_INTERVAL == 0) {
+				if (indexSize == indexSequences.length) {
+					indexSequences = Arrays.copyOf(indexSequences, 2 * indexSize);
+					indexOffsets   = Arrays.copyOf(indexOffsets, 2 * indexSize);
+				}
+				indexSequences[indexSize] = sequence;
+				indexOffsets[indexSize]   = offset;
+				indexSize++;
+			}
+			
+			records++;
+			nextSequence = sequence + 1;
+		}
+		
+		public void read(long fromSequence, int maxCount, List<ChatMessage> result) {
+			if (records == 0 || fromSequence >= nextSequence)
+				return;
+			
+			// start from the closest sparse index entry, then scan forward
+			int entry = Arrays.binarySearch(indexSequences, 0, indexSize, fromSequence);
+			if (entry < 0)
+				entry = Math.max(0, -entry - 2);
+			
+			ByteBuffer view = buffer.duplicate();
+			int offset = indexOffsets[entry];
+			int added  = 0;
+			
+			while (added < maxCount) {
+				int length = view.getInt(offset);
+				if (length < RECORD_HEADER)
+					break;
+				
+				long sequence = view.getLong(offset + 4);
+				if (sequence >= fromSequence) {
+					int    senderLength = view.getInt(offset + 12);
+					byte[] sender       = new byte[senderLength];
+					view.position(offset + 16);
+					view.get(sender);
+					
+					int    textLength = view.getInt();
+					byte[] text       = new byte[textLength];
+					view.get(text);
+					
+					result.add(new ChatMessage(new String(sender, StandardCharsets.UTF_8),
+					                           new String(text, StandardCharsets.UTF_8),
+					                           sequence));
+					added++;
+				}
+				
+				offset += length;
+				if (offset + 4 > view.capacity())
+					break;
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package zolera.chat.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.rmi.RemoteException;
+import java.util.*;
+
+import zolera.chat.infrastructure.*;
+
+// Server side of a client connected through the NIO transport. It stands in
+// for the client's RMI stub, so rooms treat it as any other RemoteClientModel.
+public class NioClientConnection
+implements RemoteClientModel {
+	private NioServerEndpoint endpoint;
+	private SocketChannel     channel;
+	private SelectionKey      key;
+	private ByteBuffer        readBuffer;
+	
+	private Deque<ByteBuffer[]> writes;
+	private long                queuedFrames;
+	private long                writtenFrames;
+	private boolean             closed;
+	
+	private String roomname;
+	
+	public NioClientConnection(NioServerEndpoint owner, SocketChannel socket) {
+		endpoint   = owner;
+		channel    = socket;
+		key        = null;
+		readBuffer = ByteBuffer.allocate(8 * 1024);
+		
+		writes        = new ArrayDeque<>();
+		queuedFrames  = 0;
+		writtenFrames = 0;
+		closed        = false;
+		
+		roomname = null;
+	}
+	
+	void setKey(SelectionKey selectionKey) {
+		key = selectionKey;
+	}
+	
+	synchronized String getRoomname() {
+		return roomname;
+	}
+	
+	synchronized void setRoomname(String name) {
+		roomname = name;
+	}
+	
+	
+	
+	@Override
+	public void receive(MessageBatch batch)
+	throws RemoteException {
+		sendAndWait(WireProtocol.batchFrame(WireProtocol.OP_RECEIVE, 0, batch));
+	}
+	
+	@Override
+	public void chatlog(MessageBatch batch)
+	throws RemoteException {
+		sendAndWait(WireProtocol.batchFrame(WireProtocol.OP_CHATLOG, 0, batch));
+	}
+	
+	@Override
+	public void presence(PresenceUpdate update)
+	throws RemoteException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			update.write(new DataOutputStream(bytes));
+		}
+		catch (IOException ioe) {
+			throw new RemoteException("Failed to encode the roster", ioe);
+		}
+		
+		sendAndWait(WireProtocol.frame(WireProtocol.OP_PRESENCE, 0, bytes.toByteArray()));
+	}
+	
+	// Same contract as an RMI callback, returns once the frame is on the socket
+	private void sendAndWait(ByteBuffer[] frame)
+	throws RemoteException {
+		long ticket = send(frame);
+		
+		synchronized(this) {
+			try {
+				while (writtenFrames < ticket && !closed)
+					wait();
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new RemoteException("Interrupted while writing to the client");
+			}
+			
+			if (writtenFrames < ticket)
+				throw new RemoteException("Connection to the client is closed");
+		}
+	}
+	
+	synchronized long send(ByteBuffer[] frame)
+	throws RemoteException {
+		if (closed)
+			throw new RemoteException("Connection to the client is closed");
+		
+		writes.addLast(frame);
+		queuedFrames++;
+		endpoint.requestWrite(this);
+		return queuedFrames;
+	}
+	
+	
+	
+	// Called by the selector thread only
+	void onReadable()
+	throws IOException {
+		if (channel.read(readBuffer) < 0)
+			throw new EOFException("Client closed the connection");
+		
+		readBuffer.flip();
+		while (readBuffer.remaining() >= 4) {
+			int length = readBuffer.getInt(readBuffer.position());
+			if (length < 5 || length > WireProtocol.MAX_FRAME_BYTES)
+				throw new StreamCorruptedException("Invalid frame length " + length);
+			
+			if (readBuffer.remaining() < 4 + length) {
+				// grow to fit a frame larger than the buffer
+				if (4 + length > readBuffer.capacity()) {
+					ByteBuffer larger = ByteBuffer.allocate(4 + length);
+					larger.put(readBuffer);
+					readBuffer = larger;
+					return;
+				}
+				break;
+			}
+			
+			readBuffer.getInt();
+			byte   opcode    = readBuffer.get();
+			int    requestId = readBuffer.getInt();
+			byte[] payload   = new byte[length - 5];
+			readBuffer.get(payload);
+			
+			endpoint.dispatch(this, opcode, requestId, payload);
+		}
+		readBuffer.compact();
+	}
+	
+	// Called by the selector thread only, returns true once everything queued is written
+	boolean onWritable()
+	throws IOException {
+		while (true) {
+			ByteBuffer[] frame;
+			synchronized(this) {
+				frame = writes.peekFirst();
+				if (frame == null)
+					return true;
+			}
+			
+			channel.write(frame);
+			if (frame[frame.length - 1].hasRemaining())
+				return false; // socket buffer is full, wait for the next OP_WRITE
+			
+			synchronized(this) {
+				writes.removeFirst();
+				writtenFrames++;
+				notifyAll();
+			}
+		}
+	}
+	
+	synchronized boolean hasPendingWrites() {
+		return !writes.isEmpty();
+	}
+	
+	SelectionKey getKey() {
+		return key;
+	}
+	
+	void close() {
+		synchronized(this) {
+			if (closed)
+				return;
+			
+			closed = true;
+			writes.clear();
+			notifyAll();
+		}
+		
+		try {
+			channel.close();
+		}
+		catch (IOException ioe) {
+			// already gone
+		}
+	}
+	
+	synchronized boolean isClosed() {
+		return closed;
+	}
+}
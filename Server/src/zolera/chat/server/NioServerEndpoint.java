@@ -0,0 +1,267 @@
+package zolera.chat.server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import zolera.chat.infrastructure.*;
+
+// Accepts NIO transport clients. One selector thread does all the socket I/O,
+// requests run on a few worker threads. Every connection is bound to a single
+// worker, so its requests are handled in the order they were sent.
+public class NioServerEndpoint
+implements Runnable {
+	private ServerModel         server;
+	private Selector            selector;
+	private ServerSocketChannel acceptor;
+	private ExecutorService[]   workers;
+	private int                 nextWorker;
+	private Thread              selectorThread;
+	
+	private Queue<NioClientConnection>        writeRequests;
+	private Map<NioClientConnection, Integer> workerOf;
+	
+	public NioServerEndpoint(ServerModel owner, int workerThreads) {
+		server         = owner;
+		selector       = null;
+		acceptor       = null;
+		workers        = new ExecutorService[workerThreads];
+		nextWorker     = 0;
+		selectorThread = new Thread(this, "NioSelector");
+		writeRequests  = new ConcurrentLinkedQueue<>();
+		workerOf       = new ConcurrentHashMap<>();
+		
+		for (int w = 0; w < workers.length; w++)
+			workers[w] = Executors.newSingleThreadExecutor();
+	}
+	
+	public void start(int port)
+	throws IOException {
+		selector = Selector.open();
+		acceptor = ServerSocketChannel.open();
+		acceptor.bind(new InetSocketAddress(port));
+		acceptor.configureBlocking(false);
+		acceptor.register(selector, SelectionKey.OP_ACCEPT);
+		
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+	
+	public void stop() {
+		selectorThread.interrupt();
+		if (selector != null)
+			selector.wakeup();
+		
+		for (ExecutorService worker : workers)
+			worker.shutdownNow();
+	}
+	
+	
+	
+	@Override
+	public void run() {
+		// This is the selectorThread entry point
+		try {
+			while (!selectorThread.isInterrupted()) {
+				selector.select();
+				registerWriteRequests();
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					handleKey(key);
+				}
+			}
+		}
+		catch (IOException | ClosedSelectorException ex) {
+			System.err.println("Error: (NIO endpoint) ");
+			ex.printStackTrace();
+		}
+		finally {
+			closeAll();
+		}
+	}
+	
+	private void handleKey(SelectionKey key) {
+		if (!key.isValid())
+			return;
+		
+		if (key.isAcceptable()) {
+			accept();
+			return;
+		}
+		
+		NioClientConnection connection = (NioClientConnection) key.attachment();
+		try {
+			if (key.isReadable())
+				connection.onReadable();
+			if (key.isValid() && key.isWritable() && connection.onWritable())
+				key.interestOps(SelectionKey.OP_READ);
+		}
+		catch (IOException | CancelledKeyException ex) {
+			// the room finds out on its next callback to the client
+			disconnect(connection);
+		}
+	}
+	
+	private void accept() {
+		try {
+			SocketChannel socket = acceptor.accept();
+			if (socket == null)
+				return;
+			
+			socket.configureBlocking(false);
+			socket.socket().setTcpNoDelay(true);
+			
+			NioClientConnection connection = new NioClientConnection(this, socket);
+			connection.setKey(socket.register(selector, SelectionKey.OP_READ, connection));
+			workerOf.put(connection, nextWorker);
+			nextWorker = (nextWorker + 1) % workers.length;
+		}
+		catch (IOException ioe) {
+			System.err.println("Error: (NIO endpoint) ");
+			ioe.printStackTrace();
+		}
+	}
+	
+	private void registerWriteRequests() {
+		NioClientConnection connection;
+		while ((connection = writeRequests.poll()) != null) {
+			SelectionKey key = connection.getKey();
+			if (key != null && key.isValid() && connection.hasPendingWrites())
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+	
+	void requestWrite(NioClientConnection connection) {
+		// interest ops are only changed from the selector thread
+		writeRequests.add(connection);
+		selector.wakeup();
+	}
+	
+	private void disconnect(NioClientConnection connection) {
+		workerOf.remove(connection);
+		connection.close();
+	}
+	
+	private void closeAll() {
+		for (NioClientConnection connection : workerOf.keySet())
+			connection.close();
+		workerOf.clear();
+		
+		try {
+			acceptor.close();
+			selector.close();
+		}
+		catch (IOException ioe) {
+			// shutting down anyway
+		}
+	}
+	
+	
+	
+	void dispatch(final NioClientConnection connection, final byte opcode, final int requestId, final byte[] payload) {
+		Integer worker = workerOf.get(connection);
+		if (worker == null)
+			return;
+		
+		try {
+			workers[worker].execute(new Runnable() {
+				@Override
+				public void run() {
+					handleRequest(connection, opcode, requestId, payload);
+				}
+			});
+		}
+		catch (RejectedExecutionException ree) {
+			// endpoint stopped
+		}
+	}
+	
+	private void handleRequest(NioClientConnection connection, byte opcode, int requestId, byte[] payload) {
+		try {
+			DataInputStream in = WireProtocol.payloadReader(payload);
+			
+			switch (opcode) {
+			case WireProtocol.OP_REFERENCE:
+				String name = WireProtocol.readString(in);
+				boolean found = server.getLocalRoom(name) != null;
+				if (found)
+					connection.setRoomname(name);
+				respond(connection, requestId, found ? 1 : 0);
+				break;
+			case WireProtocol.OP_JOIN:
+				String username = WireProtocol.readString(in);
+				respond(connection, requestId, getRoom(connection).join(username, connection));
+				break;
+			case WireProtocol.OP_SUBMIT:
+				ChatMessage msg = new ChatMessage(WireProtocol.readString(in), WireProtocol.readString(in));
+				respond(connection, requestId, getRoom(connection).submit(connection, msg));
+				break;
+			case WireProtocol.OP_SUBMIT_BATCH:
+				MessageBatch submitted = WireProtocol.readBatch(in);
+				respond(connection, requestId, getRoom(connection).submitBatch(connection, submitted));
+				break;
+			case WireProtocol.OP_RENEW:
+				respond(connection, requestId, getRoom(connection).renew(connection));
+				break;
+			case WireProtocol.OP_HISTORY:
+				MessageBatch batch = getRoom(connection).history(in.readLong(), in.readInt());
+				connection.send(WireProtocol.batchFrame(WireProtocol.OP_RESPONSE, requestId, batch));
+				break;
+			default:
+				throw new StreamCorruptedException("Unknown opcode " + opcode);
+			}
+		}
+		catch (IOException ioe) {
+			// RemoteExceptions from the room included, the client gets the reason
+			respondError(connection, requestId, String.valueOf(ioe.getMessage()));
+		}
+		catch (RuntimeException re) {
+			// a bug or a malformed payload, still answered so the client doesn't wait out its timeout
+			System.err.println("Error: (NIO endpoint) ");
+			re.printStackTrace();
+			respondError(connection, requestId, re.toString());
+		}
+	}
+	
+	private void respondError(NioClientConnection connection, int requestId, String reason) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			WireProtocol.writeString(new DataOutputStream(bytes), reason);
+			connection.send(WireProtocol.frame(WireProtocol.OP_ERROR, requestId, bytes.toByteArray()));
+		}
+		catch (IOException | RuntimeException unreachable) {
+			connection.close();
+		}
+	}
+	
+	private RoomModel getRoom(NioClientConnection connection)
+	throws IOException {
+		RoomModel room = server.getLocalRoom(connection.getRoomname());
+		if (room == null)
+			throw new RemoteException("No room referenced on this connection");
+		return room;
+	}
+	
+	private void respond(NioClientConnection connection, int requestId, int value)
+	throws RemoteException {
+		ByteBuffer payload = ByteBuffer.allocate(4);
+		payload.putInt(value);
+		connection.send(WireProtocol.frame(WireProtocol.OP_RESPONSE, requestId, payload.array()));
+	}
+	
+	private void respond(NioClientConnection connection, int requestId, int[] values)
+	throws RemoteException {
+		ByteBuffer payload = ByteBuffer.allocate(4 + 4 * values.length);
+		payload.putInt(values.length);
+		for (int value : values)
+			payload.putInt(value);
+		connection.send(WireProtocol.frame(WireProtocol.OP_RESPONSE, requestId, payload.array()));
+	}
+}
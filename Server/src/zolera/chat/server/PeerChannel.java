@@ -0,0 +1,55 @@
+package zolera.chat.server;
+
+import java.rmi.RemoteException;
+import java.util.*;
+
+// Receiving end of the frames a peer sends to a room. The calls carrying them
+// run concurrently and may arrive in any order, a frame is held back until
+// those before it are applied. A sender that fails starts over on a new channel.
+public class PeerChannel {
+	private long                         channel;
+	private long                         applied;
+	private SortedMap<Long, FrameAction> waiting;
+	
+	public PeerChannel() {
+		channel = -1;
+		applied = 0;
+		waiting = new TreeMap<>();
+	}
+	
+	// Returns the last frame applied together with all those before it
+	public synchronized long receive(long channelId, long frame, FrameAction action)
+	throws RemoteException {
+		if (channelId != channel) {
+			// a late frame of an older channel resets us as well, the sender then restarts
+			channel = channelId;
+			applied = 0;
+			waiting.clear();
+		}
+		
+		if (frame <= applied)
+			return applied; // resent, its acknowledgement got lost
+		
+		waiting.put(frame, action);
+		try {
+			while (!waiting.isEmpty() && waiting.firstKey() == applied + 1) {
+				waiting.remove(applied + 1).apply();
+				applied++;
+			}
+		}
+		catch (RemoteException re) {
+			// the sender restarts the channel, the frames held back come again
+			waiting.clear();
+			throw re;
+		}
+		
+		return applied;
+	}
+	
+	
+	
+	public interface FrameAction {
+		public void apply()
+		throws RemoteException;
+	}
+}
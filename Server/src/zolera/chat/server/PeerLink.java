@@ -0,0 +1,327 @@
+package zolera.chat.server;
+
+import java.rmi.*;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.*;
+
+import zolera.chat.infrastructure.*;
+
+// Connection of a room to the room with the same name on another server.
+// Batches go out as numbered frames, up to a window of them ahead of the
+// peer's acknowledgements, so a busy link is not held to one batch per round
+// trip. Broadcasts queued behind a full window go out together in one frame.
+// A frame is kept until acknowledged: after a failure the unacknowledged ones
+// are renumbered on a new channel and sent again once the peer is back.
+// Presence frames carry the users of this server, every peer gets them.
+// The master commits a batch once every peer it went to acknowledged it.
+public class PeerLink {
+	private ServerConfiguration config;
+	private int                 peerId;
+	private RoomModel           room;
+	private FanoutEngine        engine;
+	private RemoteRoomModel     peerRef;
+	private int                 window;
+	
+	private Deque<Frame>           unsent;
+	private SortedMap<Long, Frame> unacked;
+	private long                   channel;
+	private long                   nextFrame;
+	private long                   acknowledged;
+	private int                    callsInFlight;
+	
+	// frames made obsolete by a change of master, dropped instead of sent
+	private long retiredTerm;
+	private long retiredShare;
+	
+	// end of the broadcasts the peer acknowledged, as of the latest term it acknowledged one in
+	private long replicatedTerm;
+	private long replicatedSequence;
+	
+	public PeerLink(int id, RoomModel owner, FanoutEngine fanout) {
+		config        = ServerConfiguration.getGlobal();
+		peerId        = id;
+		room          = owner;
+		engine        = fanout;
+		peerRef       = null;
+		window        = Math.max(1, config.getReplicationWindow());
+		unsent        = new ArrayDeque<>();
+		unacked       = new TreeMap<>();
+		retiredTerm   = -1;
+		retiredShare  = 0;
+		replicatedTerm     = -1;
+		replicatedSequence = 0;
+		
+		// a restarted server must not reuse the channel it had before
+		channel       = System.currentTimeMillis() * 1000;
+		nextFrame     = 1;
+		acknowledged  = 0;
+		callsInFlight = 0;
+	}
+	
+	public int getPeerId() {
+		return peerId;
+	}
+	
+	public synchronized boolean isConnected() {
+		return peerRef != null;
+	}
+	
+	public void setReference(RemoteRoomModel ref) {
+		boolean connected;
+		synchronized(this) {
+			connected = ref != null && !ref.equals(peerRef);
+			peerRef   = ref;
+			
+			// back again, resend what it had not acknowledged
+			if (ref != null)
+				startSending();
+		}
+		
+		// outside our lock, the room takes its roster lock first
+		if (connected)
+			room.onPeerConnected(this);
+	}
+	
+	// Looks the peer room up through the registry of its server, opening it there if needed
+	public RemoteRoomModel resolve()
+	throws RemoteException, NotBoundException {
+		synchronized(this) {
+			if (peerRef != null)
+				return peerRef;
+		}
+		
+		String   address    = config.getRegistryAddress(peerId);
+		String[] components = address.split(":");
+		Registry registry   = LocateRegistry.getRegistry(components[0], Integer.parseInt(components[1]));
+		
+		RemoteServerModel server = (RemoteServerModel) registry.lookup(config.getServerRegisteredName());
+		RemoteRoomModel   ref    = server.referenceLocal(room.getRoomname());
+		if (ref == null)
+			throw new NotBoundException("Room '" + room.getRoomname() + "' refused by server " + peerId);
+		
+		setReference(ref);
+		return ref;
+	}
+	
+	// Frames not acknowledged yet are kept for the next connection
+	public synchronized void disconnect() {
+		peerRef = null;
+		restartChannel();
+	}
+	
+	
+	
+	// Follower to master, unordered messages of the follower's clients
+	public synchronized void share(long shareId, MessageBatch batch) {
+		unsent.addLast(new Frame(shareId, batch));
+		startSending();
+	}
+	
+	// Master to follower, batches already stamped with their global sequence up to endSequence
+	public synchronized void broadcast(long term, MessageBatch batch, long[] ordered, long endSequence) {
+		unsent.addLast(new Frame(term, batch, ordered, endSequence));
+		startSending();
+	}
+	
+	// Sequence following the last message the peer holds of the broadcasts of a term
+	public synchronized long getReplicatedSequence(long term) {
+		return (term == replicatedTerm) ? replicatedSequence : 0;
+	}
+	
+	// Users of this server joining or leaving. Skipped while disconnected, a new
+	// connection starts with a snapshot of them instead
+	public synchronized void presence(PresenceUpdate update) {
+		if (peerRef == null)
+			return;
+		
+		unsent.addLast(new Frame(update));
+		startSending();
+	}
+	
+	// Broadcasts of a term this server is no longer master of
+	public synchronized void retireBroadcasts(long upToTerm) {
+		retiredTerm = Math.max(retiredTerm, upToTerm);
+	}
+	
+	// Shares the room resends to a new master, this peer no longer orders them
+	public synchronized void retireShares(long upToShare) {
+		retiredShare = Math.max(retiredShare, upToShare);
+	}
+	
+	private boolean isRetired(Frame frame) {
+		if (frame.isPresence())
+			return false;
+		return frame.isBroadcast() ? frame.term <= retiredTerm : frame.shareId <= retiredShare;
+	}
+	
+	// Caller holds the lock
+	private void startSending() {
+		while (!unsent.isEmpty() && nextFrame - 1 - acknowledged < window) {
+			Frame frame = takeNextFrame();
+			if (frame == null)
+				continue;
+			
+			frame.number = nextFrame++;
+			unacked.put(frame.number, frame);
+			callsInFlight++;
+			engine.execute(new Call(channel, frame));
+		}
+	}
+	
+	// Caller holds the lock, consecutive broadcasts are joined into a single frame
+	private Frame takeNextFrame() {
+		Frame frame = unsent.pollFirst();
+		if (isRetired(frame))
+			return null;
+		if (!frame.isBroadcast() || unsent.isEmpty() || !unsent.peekFirst().isBroadcast())
+			return frame;
+		
+		List<MessageBatch> batches = new ArrayList<>();
+		batches.add(frame.batch);
+		while (!unsent.isEmpty() && unsent.peekFirst().isBroadcast()) {
+			Frame next = unsent.pollFirst();
+			if (isRetired(next))
+				continue;
+			
+			batches.add(next.batch);
+			frame = new Frame(next.term, null, next.ordered, next.end);
+		}
+		
+		frame.batch = (batches.size() == 1) ? batches.get(0) : MessageBatch.concat(batches);
+		return frame;
+	}
+	
+	// Caller holds the lock, unacknowledged frames go back in front to be renumbered
+	private void restartChannel() {
+		List<Frame> resend = new ArrayList<>(unacked.values());
+		for (int f = resend.size() - 1; f >= 0; f--)
+			unsent.addFirst(resend.get(f));
+		
+		unacked.clear();
+		channel++;
+		nextFrame     = 1;
+		acknowledged  = 0;
+		callsInFlight = 0;
+	}
+	
+	private void onAcknowledged(long channelId, long ack) {
+		boolean replicated = false;
+		synchronized(this) {
+			if (channelId != channel)
+				return; // answer to a channel given up already
+			
+			callsInFlight--;
+			if (ack > acknowledged) {
+				acknowledged = ack;
+				
+				SortedMap<Long, Frame> done = unacked.headMap(ack + 1);
+				for (Frame frame : done.values())
+					if (frame.isBroadcast())
+						replicated |= onReplicated(frame);
+				done.clear();
+			}
+			
+			// every call answered but not every frame acknowledged, the peer lost the channel (e.g. reopened the room)
+			if (callsInFlight == 0 && !unacked.isEmpty())
+				restartChannel();
+			
+			startSending();
+		}
+		
+		// outside our lock, the room may commit and broadcast again
+		if (replicated)
+			room.onBroadcastReplicated();
+	}
+	
+	// Caller holds the lock, the acknowledgements of an older term no longer count
+	private boolean onReplicated(Frame frame) {
+		if (frame.term < replicatedTerm)
+			return false;
+		
+		if (frame.term > replicatedTerm) {
+			replicatedTerm     = frame.term;
+			replicatedSequence = 0;
+		}
+		replicatedSequence = Math.max(replicatedSequence, frame.end);
+		return true;
+	}
+	
+	private void onFailure(long channelId, Exception cause) {
+		synchronized(this) {
+			if (channelId != channel)
+				return; // reported by another call of the same channel
+			
+			peerRef = null;
+			restartChannel();
+		}
+		
+		room.onPeerFailure(this, cause);
+	}
+	
+	
+	
+	private static class Frame {
+		private long           number;
+		private long           term;     // broadcasts only
+		private long[]         ordered;  // broadcasts only
+		private long           end;      // broadcasts only
+		private long           shareId;  // shares only
+		private PresenceUpdate presence; // presence only
+		private MessageBatch   batch;
+		
+		public Frame(long share, MessageBatch messages) {
+			shareId = share;
+			batch   = messages;
+		}
+		
+		public Frame(long masterTerm, MessageBatch messages, long[] orderedShares, long endSequence) {
+			term    = masterTerm;
+			ordered = orderedShares;
+			batch   = messages;
+			end     = endSequence;
+		}
+		
+		public Frame(PresenceUpdate update) {
+			presence = update;
+		}
+		
+		public boolean isBroadcast() {
+			return ordered != null;
+		}
+		
+		public boolean isPresence() {
+			return presence != null;
+		}
+	}
+	
+	private class Call
+	implements Runnable {
+		private long  channelId;
+		private Frame frame;
+		
+		public Call(long id, Frame toSend) {
+			channelId = id;
+			frame     = toSend;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				RemoteRoomModel ref = resolve();
+				long            ack;
+				if (frame.isPresence())
+					ack = ref.presence(room.getServerId(), channelId, frame.number, frame.presence);
+				else if (frame.isBroadcast())
+					ack = ref.broadcast(room.getServerId(), frame.term, channelId, frame.number, frame.batch, frame.ordered, room.getCommittedSequence());
+				else
+					ack = ref.share(room.getServerId(), channelId, frame.number, frame.shareId, frame.batch);
+				
+				onAcknowledged(channelId, ack);
+			}
+			catch (RemoteException | NotBoundException ex) {
+				onFailure(channelId, ex);
+			}
+		}
+	}
+}
@@ -1,170 +1,440 @@
 package zolera.chat.server;
 
+import java.io.*;
 import java.rmi.*;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.rmi.server.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import zolera.chat.infrastructure.*;
 
 public class RoomModel
-implements RemoteRoomModel, Runnable {
+implements RemoteRoomModel {
 	private ServerConfiguration config;
 	private String roomname;
 	
 	private Map<RemoteClientModel, ClientHandle> clients;
+	private FanoutEngine fanout;
 	private int maxCapacity;	
+	private volatile BackpressurePolicy clientPolicy;
 	
 	private Queue<ChatMessage> pending;
-	private Queue<ChatMessage> broadcast;
+	private AtomicBoolean      drainScheduled;
+	private List<ChatMessage>  drained;
+	private Runnable           drainTask;
+	private RoomScheduler      scheduler;
+	private LeaseWheel         leases;
 	private ChatLog            chatlog;
-	private Thread             consumerThread;
+	private MessageJournal     journal;
+	private volatile long      lastActivityMillis;
+	private volatile long      deliveredMessages;
+	private boolean            closed;
 	
 	private RemoteRoomModel roomRef;
-	private int[] serverBootStatus;
-	private RemoteRoomModel [] remoteRooms;
+	private PeerLink[]      peers;
+	private PeerChannel[]   inbound;
 	
-	private int serverId;
-	private int masterId;
+	// users on every server, clients get the changes as deltas from the drain task
+	private Roster        roster;
+	private AtomicBoolean presenceDirty;
+	private long[]        answeredSnapshots;
 	
-	public static final int SERVER_UNKNOWN_STATUS     = 0;
-	public static final int SERVER_ONLINE             = 617;
-	public static final int SERVER_OFFLINE     = 619;
+	private int     serverId;
+	private int     masterId;
+	private long    term;
+	private int     votedFor;
+	private boolean electing;
+	private long    lastHeartbeatMillis;
 	
-	public RoomModel(String name, int serverId)
-	throws RemoteException {
+	// last share of every server that made it into the global order, replicated with each broadcast
+	private Object                        shareLock;
+	private long[]                        orderedShares;
+	private long                          nextShareId;
+	private SortedMap<Long, MessageBatch> unackedShares;
+	
+	// ordered batches no client has seen yet, in sequence order. The master commits one once every
+	// peer it went to holds it, a follower once the master has. A new master commits those it holds
+	private Deque<ReplicatedBatch> uncommitted;
+	private AtomicBoolean          commitNoticeScheduled;
+	
+	public static final int NO_MASTER = -1;
+	
+	public RoomModel(String name, int serverId, FanoutEngine engine, RoomScheduler roomScheduler, LeaseWheel leaseWheel)
+	throws IOException {
+		this(name, serverId, engine, roomScheduler, leaseWheel, new File(ServerConfiguration.getGlobal().getJournalDirectory()));
+	}
+	
+	// The journal goes in a directory of its own under journalRoot instead of the configured one
+	public RoomModel(String name, int serverId, FanoutEngine engine, RoomScheduler roomScheduler, LeaseWheel leaseWheel, File journalRoot)
+	throws IOException {
 		config   = ServerConfiguration.getGlobal();
 		roomname = name;
 		
 		maxCapacity = config.getMaxRoomCapacity();
-		clients     = new HashMap<>(maxCapacity);
+		clients     = new ConcurrentHashMap<>(maxCapacity);
+		fanout      = engine;
+		clientPolicy = config.getClientBackpressurePolicy();
 		
-		pending        = new ArrayDeque<>(config.getInitialMessageListCapacity());
-		broadcast      = new ArrayDeque<>(config.getInitialMessageListCapacity());
-		chatlog        = new ChatLog(config.getInitialChatLogCapacity());
-		consumerThread = new Thread(this);
+		pending        = new ConcurrentLinkedQueue<>();
+		drainScheduled = new AtomicBoolean(false);
+		drained        = new ArrayList<>(config.getInitialMessageListCapacity());
+		scheduler      = roomScheduler;
+		leases         = leaseWheel;
+		chatlog        = new ChatLog(config.getChatLogSegmentCapacity(), config.getChatLogMaxMessages(), config.getChatLogMaxBytes());
+		journal        = null;
+		closed         = false;
+		lastActivityMillis = System.currentTimeMillis();
+		deliveredMessages  = 0;
+		drainTask = new Runnable() {
+			@Override
+			public void run() {
+				drainPendingMessages();
+			}
+		};
 		this.serverId = serverId;
-		masterId = -1;
+		masterId = NO_MASTER;
+		term     = 0;
+		votedFor = NO_MASTER;
+		electing = false;
+		lastHeartbeatMillis = System.currentTimeMillis();
+		shareLock     = new Object();
+		orderedShares = new long[config.getRegistryAddressesListLength()];
+		nextShareId   = 0;
+		unackedShares = new TreeMap<>();
+		uncommitted   = new ArrayDeque<>();
+		commitNoticeScheduled = new AtomicBoolean(false);
 		roomRef = (RemoteRoomModel) UnicastRemoteObject.exportObject(this, 0);
-		remoteRooms = new RemoteRoomModel[config.getRegistryAddressesListLength()];
+		peers   = new PeerLink[config.getRegistryAddressesListLength()];
+		inbound = new PeerChannel[peers.length];
+		roster  = new Roster();
+		presenceDirty     = new AtomicBoolean(false);
+		answeredSnapshots = new long[peers.length];
+		for (int id = 0; id < peers.length; id++) {
+			if (id != serverId) {
+				peers[id]   = new PeerLink(id, this, engine);
+				inbound[id] = new PeerChannel();
+			}
+		}
+		
+		if (config.isJournalEnabled()) {
+			try {
+				openJournal(journalRoot);
+			}
+			catch (IOException ioe) {
+				UnicastRemoteObject.unexportObject(this, true);
+				throw ioe;
+			}
+		}
 	}
 	
-	public synchronized RemoteRoomModel getReference() {
-		return roomRef;
+	private void openJournal(File journalRoot)
+	throws IOException {
+		File dir = MessageJournal.getRoomDirectory(journalRoot, roomname);
+		journal = new MessageJournal(dir, config.getJournalSegmentBytes(), config.getJournalMaxBytes(), config.getChatLogMaxMessages(), config.getJournalSyncPolicy());
+		
+		// rebuild the in-memory tail from the journal, older messages stay on disk. The log
+		// has no gaps, so it starts after the last one the journal has
+		long next = journal.getNextSequence();
+		long from = Math.max(journal.getContiguousSequence(), next - config.getChatLogMaxMessages());
+		
+		chatlog.setNextIndex(from);
+		chatlog.addMessageBatch(journal.read(from, (int) (next - from)));
 	}
 	
+	public void setJournalSyncPolicy(JournalSyncPolicy policy) {
+		if (journal != null)
+			journal.setSyncPolicy(policy);
+	}
 	
+	// Applies to clients joining from now on
+	public void setClientBackpressurePolicy(BackpressurePolicy policy) {
+		clientPolicy = policy;
+	}
 	
-	public void startConsumerThread() {
-		consumerThread.start();
+	public synchronized RemoteRoomModel getReference() {
+		return roomRef;
 	}
 	
-	public void stopConsumerThread() {
-		if (!consumerThread.isAlive())
+	
+	
+	public synchronized void close() {
+		if (closed)
 			return;
+		closed = true;
 		
-		// interrupt thread and wait for it to end
-		consumerThread.interrupt();
-		while(consumerThread.isAlive()) {
-			try {
-				consumerThread.join();
-			}
-			catch (InterruptedException ie) {
-				System.err.println("Error: (" + roomname + ") ");
-				ie.printStackTrace();
-			}
+		try {
+			UnicastRemoteObject.unexportObject(this, true);
+		}
+		catch (NoSuchObjectException nsoe) {
+			// never exported or already gone
 		}
+		
+		for (ClientHandle handle : clients.values())
+			handle.close();
+		clients.clear();
+		
+		// nobody drains a closed room, the messages and changes it held go with it
+		pending.clear();
+		presenceDirty.set(false);
+		uncommitted.clear();
+		
+		if (journal != null)
+			journal.close();
 	}
 	
-	@Override
-	public void run() {
-		// This is the consumerThread entry point
-		consumerThreadLoop();
+	public String getRoomname() {
+		return roomname;
 	}
 	
-	private void consumerThreadLoop() {
-		while (true) {
-			try {
-				if (consumerThread.isInterrupted())
-					throw new InterruptedException("Interruption detected in service loop");
-				
-				synchronized(this) {
-					//if(masterId != -1)
-					//{
-						broadcastMessageBatchToClients();
-						processPendingMessageBatch();
-					//}
-				}
+	public int getServerId() {
+		return serverId;
+	}
+	
+	// The room with the same name on another server, it replicates this one
+	public RemoteRoomModel getPeerReference(int peerId)
+	throws RemoteException, NotBoundException {
+		if (peerId < 0 || peerId >= peers.length || peers[peerId] == null)
+			throw new NotBoundException("No server " + peerId + " replicates room '" + roomname + "'");
+		return peers[peerId].resolve();
+	}
+	
+	public int getClientCount() {
+		return clients.size();
+	}
+	
+	public int getQueuedDeliveries() {
+		int queued = 0;
+		for (ClientHandle handle : clients.values())
+			queued += handle.getQueuedMessages();
+		return queued;
+	}
+	
+	// Messages ordered in this room since it was opened
+	public long getDeliveredMessages() {
+		return deliveredMessages;
+	}
+	
+	// Marks the room as in use, so a reference handed out is not evicted under the client
+	public void touch() {
+		lastActivityMillis = System.currentTimeMillis();
+	}
+	
+	// A master or follower serving the users of other servers is in use too
+	public boolean isIdle(long nowMillis, long idleTimeoutMillis) {
+		if (!clients.isEmpty() || !pending.isEmpty() || drainScheduled.get() || !roster.isEmpty())
+			return false;
+		
+		return nowMillis - lastActivityMillis >= idleTimeoutMillis;
+	}
+	
+	private void scheduleDrain() {
+		// with a batching window, messages arriving shortly after the first one join the same batch
+		long windowTime = config.getRoomBatchingWindowMillis();
+		if (windowTime > 0)
+			scheduler.schedule(drainTask, windowTime);
+		else
+			scheduler.execute(drainTask);
+	}
+	
+	private void drainPendingMessages() {
+		// This runs on a scheduler thread, never on two at once for the same room
+		synchronized(this) {
+			// before the messages, a user's "joined" message finds the user listed
+			if (!closed && presenceDirty.getAndSet(false))
+				publishPresence();
 			
-				consumerThreadSleep();
-			}
-			catch (InterruptedException ie) {
-				break;
-			}
+			// producers never take this lock, it only orders us against join() and history()
+			if (!closed && masterId == serverId)
+				orderPendingMessages();
+			else if (!closed && masterId != NO_MASTER)
+				shareWithMaster(getPendingBatch());
+			// without a master the messages wait, the next master drains them
 		}
+		
+		// a message offered after the batch was taken saw the flag still set, so check again
+		drainScheduled.set(false);
+		requestDrain();
 	}
 	
-	private void consumerThreadSleep()
-	throws InterruptedException {
-		long ellapsedTime = 0;
-		long startTime    = System.currentTimeMillis();
-		long sleepTime    = config.getSleepTimeRoomConsumerThreadMillis();
+	// Without a master the pending messages can't be taken, the next master's onMasterChanged() drains them
+	private void requestDrain() {
+		boolean progress;
+		synchronized(this) {
+			progress = !closed && (presenceDirty.get() || (masterId != NO_MASTER && !pending.isEmpty()));
+		}
 		
-		do {
-			Thread.sleep(sleepTime - ellapsedTime);
-			ellapsedTime = System.currentTimeMillis() - startTime;
-		} while (ellapsedTime < sleepTime);
+		if (progress && drainScheduled.compareAndSet(false, true))
+			scheduleDrain();
 	}
 	
 	
 	
-	private synchronized void processPendingMessageBatch() {
-		ChatMessage[] batch = getPendingBatch();
+	private void orderPendingMessages() {
+		ChatMessage[] batch;
+		long[]        ordered;
+		
+		// taken together, every share counted in the vector is in this batch or an earlier one
+		synchronized(shareLock) {
+			batch   = getPendingBatch();
+			ordered = orderedShares.clone();
+		}
+		
+		broadcastOrderedBatch(batch, ordered);
+	}
+	
+	private synchronized void broadcastOrderedBatch(ChatMessage[] batch, long[] ordered) {
 		if (batch == null)
 			return;
 		
-		addBroadcastBatch(batch);
+		// stamp the batch with its position in the room history, the master's order is the global one
+		long sequence = getLogEnd();
+		for (int m = 0; m < batch.length; m++)
+			batch[m] = batch[m].withSequence(sequence + m);
+		
+		// encode once here, every client and follower callback writes the same bytes
+		MessageBatch shared = new MessageBatch(batch);
+		if (config.isCompactWireFormat())
+			shared.encode();
+		
+		replicate(new ReplicatedBatch(batch, shared, ordered));
+		commitReplicated();
+	}
+	
+	// Caller holds the lock. Peers out of reach don't hold up the commit, as they don't vote
+	private void replicate(ReplicatedBatch replicated) {
+		List<PeerLink> replicas = new ArrayList<>(peers.length);
+		for (PeerLink peer : peers) {
+			if (peer != null && peer.isConnected()) {
+				peer.broadcast(term, replicated.batch, replicated.ordered, replicated.end);
+				replicas.add(peer);
+			}
+		}
+		
+		replicated.replicas = replicas;
+		uncommitted.addLast(replicated);
+	}
+	
+	// Delivers, in order, the batches every peer they went to acknowledged or dropped out meanwhile
+	private synchronized void commitReplicated() {
+		if (closed || masterId != serverId)
+			return;
+		
+		boolean notify = false;
+		while (!uncommitted.isEmpty() && isReplicated(uncommitted.peekFirst())) {
+			ReplicatedBatch replicated = uncommitted.pollFirst();
+			deliverOrderedBatch(replicated.messages, replicated.batch);
+			notify |= !replicated.replicas.isEmpty();
+		}
+		
+		// later broadcasts tell the followers what is committed, after the last one a heartbeat does
+		if (notify && uncommitted.isEmpty() && commitNoticeScheduled.compareAndSet(false, true)) {
+			fanout.execute(new Runnable() {
+				@Override
+				public void run() {
+					commitNoticeScheduled.set(false);
+					sendHeartbeats(true);
+				}
+			});
+		}
 	}
 	
-	private synchronized void broadcastMessageBatchToClients() {
-		ChatMessage[] batch = getBroadcastBatch();
+	private boolean isReplicated(ReplicatedBatch replicated) {
+		for (PeerLink peer : replicated.replicas)
+			if (peer.isConnected() && peer.getReplicatedSequence(term) < replicated.end)
+				return false;
+		return true;
+	}
+	
+	void onBroadcastReplicated() {
+		commitReplicated();
+	}
+	
+	// Next sequence after every message committed here, what followers may hand to their clients
+	public synchronized long getCommittedSequence() {
+		return chatlog.getNextIndex();
+	}
+	
+	// Caller holds the lock. Next sequence after every ordered message this room has, committed or not
+	private long getLogEnd() {
+		long next = chatlog.getNextIndex();
+		return uncommitted.isEmpty() ? next : Math.max(next, uncommitted.peekLast().end);
+	}
+	
+	private void shareWithMaster(ChatMessage[] batch) {
 		if (batch == null)
 			return;
 		
+		// kept until a broadcast shows it ordered, a new master gets it again
+		MessageBatch share = new MessageBatch(batch);
+		long         id;
+		synchronized(shareLock) {
+			id = ++nextShareId;
+			unackedShares.put(id, share);
+		}
+		
+		// the master orders the messages and broadcasts them back, including to our clients
+		peers[masterId].share(id, share);
+	}
+	
+	// Appends a batch in its final order and hands it to the clients of this server
+	private synchronized void deliverOrderedBatch(ChatMessage[] batch, MessageBatch shared) {
 		chatlog.addMessageBatch(batch);
+		appendToJournal(batch);
+		deliveredMessages += batch.length;
 		
-		Iterator<ClientHandle> iterator = clients.values().iterator();
-		while(iterator.hasNext()) {
-			ClientHandle handle    = iterator.next();
-			
+		// only enqueue here, the fan-out engine does the RMI calls concurrently
+		List<ClientHandle> lagging = null;
+		for (ClientHandle handle : clients.values()) {
 			try {
-				sendMessageBatchToClient(handle, batch);
+				handle.deliver(shared);
 			}
 			catch (DeadClientException dce) {
+				if (lagging == null)
+					lagging = new ArrayList<>();
+				lagging.add(handle);
 				System.out.println("\n" + dce.getMessage());
-				
-				// Remove client when we determine it is unresponsive
-				addPendingMessage(new ChatMessage(config.getSystemMessagesUsername(),"User '" + handle.getUsername() + "' left the room"));
-				iterator.remove();
 			}
 		}
+		
+		if (lagging != null)
+			for (ClientHandle handle : lagging)
+				removeClient(handle);
 	}
 	
-	private synchronized void sendMessageBatchToClient(ClientHandle handle, ChatMessage[] msg)
-	throws DeadClientException {
+	private void appendToJournal(ChatMessage[] batch) {
+		if (journal == null)
+			return;
+		
 		try {
-			handle.getClientRef().receive(msg);
+			// group commit, the whole batch is synced before clients see it
+			journal.append(batch);
+			journal.commit();
 		}
-		catch (RemoteException re) {
-			throw getRemovingUserException(handle, "RMI layer", re);
-		}
-		catch (Exception e) {
-			throw getRemovingUserException(handle, "thrown exception on client code", e);
+		catch (IOException ioe) {
+			// the journal takes the next batch after a gap, history() skips the lost ones
+			System.err.println("Error: (" + roomname + ") messages up to " + batch[batch.length - 1].getSequence() + " may be missing from the journal");
+			ioe.printStackTrace();
 		}
 	}
 	
-	private synchronized DeadClientException getRemovingUserException(ClientHandle handle, String reason, Throwable cause) {
+	void removeDeadClient(ClientHandle handle, DeadClientException dce) {
+		System.out.println("\n" + dce.getMessage());
+		removeClient(handle);
+	}
+	
+	private void removeClient(ClientHandle handle) {
+		// a failed call, its deadline and the drain task may all report the same client
+		if (!clients.remove(handle.getClientRef(), handle))
+			return;
+		
+		touch();
+		handle.close();
+		announcePresence(handle.getUsername(), false);
+		addPendingMessage(new ChatMessage(config.getSystemMessagesUsername(),"User '" + handle.getUsername() + "' left the room"));
+	}
+	
+	DeadClientException getRemovingUserException(ClientHandle handle, String reason, Throwable cause) {
 		String message = "User '" + handle.getUsername() + "' needs to be removed "
 	                     + "(because of " + reason + ") on room '" + roomname + "'";
 		
@@ -176,65 +446,105 @@ implements RemoteRoomModel, Runnable {
 	
 	
 	
-	public synchronized boolean isClient(RemoteClientModel clientRef) {
+	public boolean isClient(RemoteClientModel clientRef) {
 		if (clientRef == null)
 			return false;
 		
 		return clients.containsKey(clientRef);
 	}
 	
-	public synchronized boolean isFull() {
+	public boolean isFull() {
 		return clients.size() >= maxCapacity;
 	}
 	
-	public synchronized ClientHandle addClient(String clientName, RemoteClientModel clientRef) {
-		ClientHandle handle = new ClientHandle(clientName, clientRef);
+	public ClientHandle addClient(String clientName, RemoteClientModel clientRef) {
+		ClientHandle handle = new ClientHandle(clientName, clientRef, this, fanout, clientPolicy);
 		clients.put(clientRef, handle);
+		leases.add(handle);
 		
 		return handle;
 	}
 	
-	public synchronized ClientHandle getClientHandle(RemoteClientModel ref) {
+	public ClientHandle getClientHandle(RemoteClientModel ref) {
 		return clients.get(ref);
 	}
 	
 	
 	
-	private synchronized void addPendingMessage(ChatMessage msg) {
+	private void addPendingMessage(ChatMessage msg) {
 		if (msg == null)
 			return;
 		
-		pending.add(msg);
+		pending.offer(msg);
+		
+		// only the first producer since the last drain schedules the room
+		if (drainScheduled.compareAndSet(false, true))
+			scheduleDrain();
 	}
 	
-	private synchronized ChatMessage[] getPendingBatch() {
-		if (pending.isEmpty())
+	private ChatMessage[] getPendingBatch() {
+		// only called by the drain task
+		ChatMessage msg;
+		while ((msg = pending.poll()) != null)
+			drained.add(msg);
+		
+		if (drained.isEmpty())
 			return null;
 		
-		ChatMessage[] batch = new ChatMessage[pending.size()];
-		for (int m = 0; m < batch.length; m++)
-			batch[m] = pending.remove();
+		ChatMessage[] batch = drained.toArray(new ChatMessage[drained.size()]);
+		drained.clear();
 		
 		return batch;
 	}
 	
-	private synchronized void addBroadcastBatch(ChatMessage[] batch) {
-		if (batch == null || batch.length == 0)
-			return;
+	
+	
+	// Local users go to the roster and to every other server in the same order,
+	// a snapshot taken for a new connection can't overtake a delta
+	private void announcePresence(String username, boolean joined) {
+		List<String> users = Collections.singletonList(username);
+		List<String> none  = Collections.emptyList();
 		
-		for (int m = 0; m < batch.length; m++)
-			broadcast.add(batch[m]);
+		synchronized(roster) {
+			if (joined)
+				roster.add(serverId, username);
+			else
+				roster.remove(serverId, username);
+			
+			PresenceUpdate delta = joined ? PresenceUpdate.delta(0, users, none) : PresenceUpdate.delta(0, none, users);
+			for (PeerLink peer : peers)
+				if (peer != null)
+					peer.presence(delta);
+		}
+		
+		markPresenceChanged();
 	}
 	
-	private synchronized ChatMessage[] getBroadcastBatch() {
-		if (broadcast.isEmpty())
-			return null;
-		
-		ChatMessage[] batch = new ChatMessage[broadcast.size()];
-		for (int m = 0; m < batch.length; m++)
-			batch[m] = broadcast.remove();
+	// A new link to another server starts with every user of this one
+	void onPeerConnected(PeerLink peer) {
+		synchronized(roster) {
+			peer.presence(roster.getSessionsOf(serverId));
+		}
+	}
+	
+	private void dropPeerUsers(int peerId) {
+		roster.removeOrigin(peerId);
+		markPresenceChanged();
+	}
+	
+	private void markPresenceChanged() {
+		presenceDirty.set(true);
+		requestDrain();
+	}
+	
+	// Caller holds the room lock, so join() hands out snapshots between two deltas
+	private void publishPresence() {
+		PresenceUpdate delta = roster.takeDelta();
+		if (delta == null)
+			return;
 		
-		return batch;
+		for (ClientHandle handle : clients.values())
+			handle.deliverPresence(delta);
 	}
 	
 	
@@ -242,23 +552,20 @@ implements RemoteRoomModel, Runnable {
 	@Override
 	public synchronized int join(String username, RemoteClientModel clientRef)
 	throws RemoteException {
+		if (closed)
+			throw new RemoteException("Room '" + roomname + "' was closed");
 		if (!join_verifyValidity(username, clientRef))
 			return RemoteRoomModel.VALIDITY_CHECK_FAILED;
 		if (isFull())
 			return RemoteRoomModel.ROOM_IS_FULL;
 		
-		addClient(username, clientRef);
-		
-		try {
-			// send all the messages on chat log to the new client
-			ChatMessage[] messages = chatlog.getAllMessages();
-			clientRef.chatlog(messages);
-		}
-		catch (Exception e) {
-			return RemoteRoomModel.ERROR_ON_CLIENT;
-		}
+		// only the tail of the chat log, and the roster the deltas published by later drains
+		// continue from. Sent by the fan-out engine like any batch, a slow client holds up no room
+		ChatMessage[] messages = chatlog.getLastMessages(config.getJoinReplayMessages());
+		addClient(username, clientRef).deliverJoin(new MessageBatch(messages), roster.getSnapshot());
 		
 		// inform users of joining user
+		announcePresence(username, true);
 		addPendingMessage(new ChatMessage(config.getSystemMessagesUsername(), "User '" + username + "' joined the room"));
 		
 		return RemoteRoomModel.SUCCESSFUL_JOIN;
@@ -267,7 +574,7 @@ implements RemoteRoomModel, Runnable {
 	private boolean join_verifyValidity(String username, RemoteClientModel clientRef) {
 		if (username == null || clientRef == null)
 			return false;
-		if (!username.matches(config.getUsernamePattern()))
+		if (!config.isValidUsername(username))
 			return false;
 		if (isClient(clientRef))
 			return false;
@@ -276,7 +583,7 @@ implements RemoteRoomModel, Runnable {
 	}
 	
 	@Override
-	public synchronized int submit(RemoteClientModel clientRef, ChatMessage msg)
+	public int submit(RemoteClientModel clientRef, ChatMessage msg)
 	throws RemoteException {
 		if (!submit_verifyValidity(clientRef, msg))
 			return RemoteRoomModel.VALIDITY_CHECK_FAILED;
@@ -286,138 +593,717 @@ implements RemoteRoomModel, Runnable {
 		}
 	}
 	
-	private synchronized boolean submit_verifyValidity(RemoteClientModel clientRef, ChatMessage msg) {
+	private boolean submit_verifyValidity(RemoteClientModel clientRef, ChatMessage msg) {
 		if (clientRef == null || msg == null)
 			return false;
-		if (msg.getSenderName() == null || msg.getMessageText() == null)
-			return false;
-		if (!isClient(clientRef))
-			return false;
 		
+		// single lookup, the client may leave concurrently
 		ClientHandle handle = getClientHandle(clientRef);
+		if (!submit_verifyMessage(handle, msg))
+			return false;
+		
+		handle.renewLease();
+		return true;
+	}
+	
+	private boolean submit_verifyMessage(ClientHandle handle, ChatMessage msg) {
+		if (handle == null || msg == null)
+			return false;
+		if (msg.getSenderName() == null || msg.getMessageText() == null)
+			return false;
 		if (!handle.getUsername().equals(msg.getSenderName()))
 			return false;
 		
 		return true;
 	}
-
+	
 	@Override
-	public void broadcast(ChatMessage[] batch)
+	public int[] submitBatch(RemoteClientModel clientRef, MessageBatch batch)
 	throws RemoteException {
+		if (clientRef == null || batch == null)
+			return new int[0];
 		
+		ChatMessage[] messages = batch.getMessages();
+		int[]         codes    = new int[messages.length];
+		
+		// one lookup and one renewal for the whole batch
+		ClientHandle handle = getClientHandle(clientRef);
+		boolean      valid  = handle != null && messages.length <= config.getMaxSubmitBatchSize();
+		for (int m = 0; m < messages.length; m++) {
+			if (!valid || !submit_verifyMessage(handle, messages[m]))
+				codes[m] = RemoteRoomModel.VALIDITY_CHECK_FAILED;
+			else {
+				addPendingMessage(messages[m]);
+				codes[m] = RemoteRoomModel.MESSAGE_SUBMITTED;
+			}
+		}
+		
+		if (valid)
+			handle.renewLease();
+		return codes;
+	}
+	
+	@Override
+	public int renew(RemoteClientModel clientRef)
+	throws RemoteException {
+		ClientHandle handle = (clientRef == null) ? null : getClientHandle(clientRef);
+		if (handle == null)
+			return RemoteRoomModel.VALIDITY_CHECK_FAILED;
+		
+		handle.renewLease();
+		return RemoteRoomModel.LEASE_RENEWED;
 	}
 
 	@Override
-	public synchronized void share(ChatMessage[] batch)
+	public synchronized MessageBatch history(long fromSequence, int maxCount)
 	throws RemoteException {
+		if (fromSequence < 0 || maxCount <= 0)
+			return new MessageBatch(new ChatMessage[0]);
+		
+		int count = Math.min(maxCount, config.getMaxHistoryPageSize());
 		
+		// anything older than the in-memory tail is read from disk
+		if (journal != null && fromSequence < chatlog.getFirstIndex())
+			return new MessageBatch(journal.read(fromSequence, count));
+		
+		return new MessageBatch(chatlog.getMessages(fromSequence, count));
 	}
 	
-	public synchronized boolean registerRoom(int serverId, RemoteRoomModel remoteRoom)
-	throws RemoteException
-	{
-		remoteRooms[serverId] = remoteRoom;
-		
-		if(masterId != -1){
-			if(amIMaster()){
-				remoteRoom.setMaster(serverId);
+	// Master to follower, the batch is already ordered
+	@Override
+	public long broadcast(final int fromMaster, final long masterTerm, long channel, long frame, final MessageBatch batch, final long[] ordered, final long committed)
+	throws RemoteException {
+		return getInboundChannel(fromMaster).receive(channel, frame, new PeerChannel.FrameAction() {
+			@Override
+			public void apply()
+			throws RemoteException {
+				applyBroadcast(fromMaster, masterTerm, batch, ordered, committed);
 			}
-			return false;
+		});
+	}
+	
+	// The frame is acknowledged once the batch is held, that is what the master commits on
+	private void applyBroadcast(int fromMaster, long masterTerm, MessageBatch batch, long[] ordered, long committed)
+	throws RemoteException {
+		ChatMessage[] messages = batch.getMessages();
+		boolean       changed;
+		boolean       behind;
+		
+		synchronized(this) {
+			if (closed)
+				throw new RemoteException("Room '" + roomname + "' was closed");
+			if (masterTerm < term)
+				throw new RemoteException("Stale master " + fromMaster + " (term " + masterTerm + " < " + term + ")");
+			
+			changed = adoptMaster(fromMaster, masterTerm);
+			touch();
+			if (messages.length > 0)
+				hold(new ReplicatedBatch(messages, batch, ordered));
+			commitHeld(committed);
+			behind = committed > chatlog.getNextIndex();
 		}
-		else if(serverBootStatus[serverId] == SERVER_UNKNOWN_STATUS){
-			serverBootStatus[serverId] = SERVER_ONLINE;
+		
+		// committed messages this room missed, e.g. it was opened after the others
+		if (behind)
+			catchUp(fromMaster, committed);
+		
+		if (changed)
+			onMasterChanged();
+	}
+	
+	// Caller holds the lock. A batch resent by the master replaces what followed it
+	private void hold(ReplicatedBatch replicated) {
+		if (replicated.end <= chatlog.getNextIndex())
+			return;
+		
+		while (!uncommitted.isEmpty() && uncommitted.peekLast().first >= replicated.first)
+			uncommitted.pollLast();
+		uncommitted.addLast(replicated);
+	}
+	
+	// Caller holds the lock. Hands the held batches up to the master's committed sequence to
+	// the clients, those after a gap wait for catchUp() to fill it
+	private void commitHeld(long committed) {
+		while (!uncommitted.isEmpty()) {
+			ReplicatedBatch replicated = uncommitted.peekFirst();
+			if (replicated.end > committed || replicated.first > chatlog.getNextIndex())
+				break;
+			
+			uncommitted.pollFirst();
+			appendOrdered(replicated.messages, replicated.batch);
+			acknowledgeShares(replicated.ordered);
+		}
+	}
+	
+	// Fetches the committed messages missing before the held ones, without the room lock
+	private void catchUp(int master, long committed) {
+		long from;
+		long to;
+		synchronized(this) {
+			from = chatlog.getNextIndex();
+			to   = uncommitted.isEmpty() ? committed : Math.min(committed, uncommitted.peekFirst().first);
+			if (closed || to <= from)
+				return;
+		}
+		
+		List<ChatMessage[]> missed = fetchMissed(master, from, to);
+		synchronized(this) {
+			if (closed)
+				return;
+			
+			appendMissed(missed, to);
+			commitHeld(committed);
+		}
+	}
+	
+	// Caller holds the lock. Appends the part of an ordered batch the log does not have yet,
+	// e.g. resent after a new master took over. Nothing is appended across a gap
+	private boolean appendOrdered(ChatMessage[] messages, MessageBatch batch) {
+		if (messages.length == 0)
 			return true;
+		
+		long next = chatlog.getNextIndex();
+		if (messages[0].getSequence() > next)
+			return false;
+		
+		int skip = (int) Math.min(messages.length, next - messages[0].getSequence());
+		if (skip > 0) {
+			messages = Arrays.copyOfRange(messages, skip, messages.length);
+			batch    = new MessageBatch(messages);
+		}
+		if (messages.length > 0)
+			deliverOrderedBatch(messages, batch);
+		return true;
+	}
+	
+	// Pages of [from, to) from the master, called without the room lock so a slow master
+	// holds up no drain. Stops at the first page the master no longer has
+	private List<ChatMessage[]> fetchMissed(int master, long from, long to) {
+		List<ChatMessage[]> missed = new ArrayList<>();
+		try {
+			RemoteRoomModel room = (master == NO_MASTER || master == serverId) ? null : peers[master].resolve();
+			
+			while (room != null && from < to) {
+				int count = (int) Math.min(to - from, config.getMaxHistoryPageSize());
+				ChatMessage[] page = room.history(from, count).getMessages();
+				if (page.length == 0 || page[0].getSequence() != from)
+					break;
+				
+				missed.add(page);
+				from += page.length;
+			}
 		}
-		else return serverBootStatus[serverId] == SERVER_ONLINE;
-	}
-	
-	private boolean amIMaster(){
-		return serverId == masterId;
-	}
-	
-	public void setMaster(int masterId)
-	{
-		this.masterId = masterId;
-		serverBootStatus = new int [ServerConfiguration.getDefaultConfiguration().getRegistryAddressesListLength()];
-	}
-	
-	public void registerWithOthers() 
-	throws TerminateServerException{
-		serverBootStatus = new int[remoteRooms.length];
-		boolean amIMasterable = true;
-		for(int id = 0; id < remoteRooms.length; id++)
-		{
-			synchronized(this)
-			{
-				String host;
-				int port;
-				try {
-					// Parse server address
-					String   address    = config.getRegistryAddress(id);
-					String[] components = address.split(":");
-					
-					serverId = id;
-					host = components[0];
-					port = Integer.parseInt(components[1]);
+		catch (RemoteException | NotBoundException ex) {
+			System.err.println("Error: (" + roomname + ") ");
+			ex.printStackTrace();
+		}
+		
+		return missed;
+	}
+	
+	// Caller holds the lock, the log may have grown since the pages were fetched
+	private void appendMissed(List<ChatMessage[]> missed, long to) {
+		for (ChatMessage[] page : missed)
+			if (!appendOrdered(page, new MessageBatch(page)))
+				break;
+		
+		// the master no longer has them, continue the log from where the master is.
+		// The journal continues from there too, leaving the gap between two segments
+		if (chatlog.getNextIndex() < to) {
+			chatlog = new ChatLog(config.getChatLogSegmentCapacity(), config.getChatLogMaxMessages(), config.getChatLogMaxBytes());
+			chatlog.setNextIndex(to);
+		}
+	}
+	
+	// Follower to master, the messages still need an order
+	@Override
+	public long share(final int origin, long channel, long frame, final long shareId, final MessageBatch batch)
+	throws RemoteException {
+		return getInboundChannel(origin).receive(channel, frame, new PeerChannel.FrameAction() {
+			@Override
+			public void apply()
+			throws RemoteException {
+				applyShare(origin, shareId, batch);
+			}
+		});
+	}
+	
+	private void applyShare(int origin, long shareId, MessageBatch batch)
+	throws RemoteException {
+		synchronized(this) {
+			if (closed || masterId != serverId)
+				throw new RemoteException("Server " + serverId + " is not the master of room '" + roomname + "'");
+		}
+		
+		synchronized(shareLock) {
+			// resent after a failover, the previous master had ordered it already
+			if (shareId <= orderedShares[origin])
+				return;
+			
+			for (ChatMessage msg : batch.getMessages())
+				pending.offer(msg);
+			orderedShares[origin] = shareId;
+		}
+		
+		touch();
+		requestDrain();
+	}
+	
+	// Any server to the others, its users joining and leaving
+	@Override
+	public long presence(final int origin, final long channel, long frame, final PresenceUpdate update)
+	throws RemoteException {
+		return getInboundChannel(origin).receive(channel, frame, new PeerChannel.FrameAction() {
+			@Override
+			public void apply()
+			throws RemoteException {
+				applyPresence(origin, channel, update);
+			}
+		});
+	}
+	
+	private void applyPresence(int origin, long channel, PresenceUpdate update)
+	throws RemoteException {
+		synchronized(this) {
+			if (closed)
+				throw new RemoteException("Room '" + roomname + "' was closed");
+		}
+		
+		roster.apply(origin, update);
+		
+		// first snapshot of a new channel, the origin lost its link to us and may have dropped our users too.
+		// Answers are snapshots as well, but on a channel answered already after one round
+		if (update.isSnapshot() && answeredSnapshots[origin] != channel) {
+			answeredSnapshots[origin] = channel;
+			onPeerConnected(peers[origin]);
+		}
+		
+		markPresenceChanged();
+	}
+	
+	private PeerChannel getInboundChannel(int peerId)
+	throws RemoteException {
+		if (peerId < 0 || peerId >= peers.length || peerId == serverId)
+			throw new RemoteException("Invalid server id " + peerId);
+		return inbound[peerId];
+	}
+	
+	private void acknowledgeShares(long[] ordered) {
+		synchronized(shareLock) {
+			for (int id = 0; id < ordered.length && id < orderedShares.length; id++)
+				orderedShares[id] = Math.max(orderedShares[id], ordered[id]);
+			
+			unackedShares.headMap(orderedShares[serverId] + 1).clear();
+		}
+	}
+	
+	
+	
+	public void startReplication() {
+		if (peers.length <= 1 || !config.isReplicationEnabled()) {
+			synchronized(this) {
+				masterId = serverId;
+			}
+			requestDrain();
+			return;
+		}
+		
+		// registry lookups and remote calls, kept off the thread that opened the room
+		fanout.execute(new Runnable() {
+			@Override
+			public void run() {
+				registerWithOthers();
+				scheduleReplicationTick();
+			}
+		});
+	}
+	
+	private void scheduleReplicationTick() {
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (replicationTick())
+					scheduler.schedule(this, config.getHeartbeatIntervalMillis());
+			}
+		}, config.getHeartbeatIntervalMillis());
+	}
+	
+	// Runs on a scheduler worker, the remote calls are handed to the fan-out engine
+	private synchronized boolean replicationTick() {
+		if (closed)
+			return false;
+		
+		// lower ids wait less, so the servers rarely compete for the same term
+		long timeout = config.getMasterTimeoutMillis() + serverId * config.getElectionStaggerMillis();
+		
+		if (masterId == serverId) {
+			fanout.execute(new Runnable() {
+				@Override
+				public void run() {
+					sendHeartbeats(false);
 				}
-				catch (NumberFormatException | IndexOutOfBoundsException ex) {
-					throw new TerminateServerException("Error parsing server address", ex);
+			});
+		}
+		else if (!electing && System.currentTimeMillis() - lastHeartbeatMillis > timeout) {
+			fanout.execute(new Runnable() {
+				@Override
+				public void run() {
+					startElection();
 				}
-				
-				Registry registry;
-				try {
-					// Get the registry of the server
-					registry = LocateRegistry.getRegistry(host, port);
-					RemoteServerModel serverRef = (RemoteServerModel) registry.lookup(config.getServerRegisteredName());
-					RemoteRoomModel remoteRoom = serverRef.reference(config.getDefaultRoomname());
-					if(!remoteRoom.registerRoom(id, roomRef))
-						amIMasterable = false;
-					remoteRooms[id] = remoteRoom;
-					serverBootStatus[id] = SERVER_ONLINE;
+			});
+		}
+		else {
+			fanout.execute(new Runnable() {
+				@Override
+				public void run() {
+					reconnectPeers();
 				}
-				catch (NotBoundException | RemoteException e) {
-					System.err.println("Error: (" + roomname + ") ");
-					e.printStackTrace();
-					serverBootStatus[id] = SERVER_OFFLINE;
-					continue;
+			});
+		}
+		
+		return true;
+	}
+	
+	private void registerWithOthers() {
+		int knownMaster = NO_MASTER;
+		
+		for (PeerLink peer : peers) {
+			if (peer == null)
+				continue;
+			
+			try {
+				int peerMaster = peer.resolve().registerRoom(serverId, roomRef);
+				if (peerMaster != NO_MASTER)
+					knownMaster = peerMaster;
+			}
+			catch (RemoteException | NotBoundException ex) {
+				disconnectPeer(peer);
+				System.err.println("Error: (" + roomname + ") server " + peer.getPeerId() + " is unreachable");
+			}
+		}
+		
+		// its term comes with the first heartbeat, without one an election follows
+		boolean changed = false;
+		synchronized(this) {
+			if (knownMaster != NO_MASTER && knownMaster != serverId && masterId == NO_MASTER)
+				changed = adoptMaster(knownMaster, term);
+			else if (masterId == NO_MASTER)
+				lastHeartbeatMillis -= config.getMasterTimeoutMillis(); // nobody to wait for
+		}
+		if (changed)
+			onMasterChanged();
+	}
+	
+	@Override
+	public synchronized int registerRoom(int peerId, RemoteRoomModel remoteRoom)
+	throws RemoteException {
+		if (peerId < 0 || peerId >= peers.length || peerId == serverId)
+			throw new RemoteException("Invalid server id " + peerId);
+		
+		peers[peerId].setReference(remoteRoom);
+		return masterId;
+	}
+	
+	@Override
+	public long heartbeat(int fromMaster, long masterTerm, long nextSequence)
+	throws RemoteException {
+		if (fromMaster < 0 || fromMaster >= peers.length)
+			throw new RemoteException("Invalid server id " + fromMaster);
+		
+		boolean changed;
+		boolean behind;
+		synchronized(this) {
+			if (masterTerm < term)
+				return term; // the sender steps down
+			
+			changed = adoptMaster(fromMaster, masterTerm);
+			commitHeld(nextSequence);
+			behind  = nextSequence > chatlog.getNextIndex();
+		}
+		
+		if (changed)
+			onMasterChanged();
+		
+		// nothing broadcast since we fell behind, fetch the gap instead of waiting for the next batch
+		if (behind) {
+			final int  master    = fromMaster;
+			final long committed = nextSequence;
+			fanout.execute(new Runnable() {
+				@Override
+				public void run() {
+					catchUp(master, committed);
 				}
+			});
+		}
+		
+		return masterTerm;
+	}
+	
+	@Override
+	public synchronized boolean requestVote(int candidate, long candidateTerm, long nextSequence)
+	throws RemoteException {
+		long now = System.currentTimeMillis();
+		
+		if (closed || candidateTerm < term)
+			return false;
+		
+		// a master we still hear from is not replaced, a lagging candidate does not disrupt it
+		boolean liveMaster = masterId != NO_MASTER && masterId != candidate
+		                     && (masterId == serverId || now - lastHeartbeatMillis <= config.getMasterTimeoutMillis());
+		if (liveMaster)
+			return false;
+		
+		if (candidateTerm > term) {
+			term     = candidateTerm;
+			votedFor = NO_MASTER;
+			masterId = NO_MASTER;
+		}
+		
+		// the new master resumes from the last ordered sequence, so it must have all we have, held or not
+		if (votedFor != NO_MASTER && votedFor != candidate)
+			return false;
+		if (nextSequence < getLogEnd())
+			return false;
+		
+		votedFor            = candidate;
+		lastHeartbeatMillis = now;
+		return true;
+	}
+	
+	private void startElection() {
+		long electionTerm;
+		long nextSequence;
+		synchronized(this) {
+			if (closed || electing || masterId == serverId)
+				return;
+			
+			electing     = true;
+			electionTerm = ++term;
+			votedFor     = serverId;
+			masterId     = NO_MASTER;
+			nextSequence = getLogEnd();
+		}
+		
+		// unreachable servers don't vote, they follow once they hear our heartbeat
+		boolean won = true;
+		for (PeerLink peer : peers) {
+			if (peer == null)
+				continue;
+			
+			try {
+				if (!peer.resolve().requestVote(serverId, electionTerm, nextSequence))
+					won = false;
+			}
+			catch (RemoteException | NotBoundException ex) {
+				disconnectPeer(peer);
 			}
 		}
 		
-		if(amIMasterable){
-			synchronized(this){
-				for(int i = 0; i < serverBootStatus.length; i++){
-					if(serverBootStatus[i] == SERVER_ONLINE){
-						if(i == serverId){
-							becomeMaster(); // I AM THE SWORD MASTAAAAAA!!!!!!!!!!!!!
-						}
-						break;
-					}
+		synchronized(this) {
+			electing = false;
+			lastHeartbeatMillis = System.currentTimeMillis();
+			
+			if (!won || term != electionTerm || closed)
+				return; // try again after the timeout
+			
+			masterId = serverId;
+			takeOverHeld();
+		}
+		
+		System.out.println("\nServer " + serverId + " is the master of room '" + roomname + "' (term " + electionTerm + ")");
+		onMasterChanged();
+		sendHeartbeats(false);
+	}
+	
+	// Caller holds the lock. What the old master ordered and we hold may have reached no client yet,
+	// it is committed in the new term like a batch of our own. Anything after a gap is given up
+	private void takeOverHeld() {
+		List<ReplicatedBatch> held = new ArrayList<>(uncommitted);
+		uncommitted.clear();
+		
+		for (ReplicatedBatch replicated : held) {
+			long next = getLogEnd();
+			if (replicated.first > next)
+				break;
+			if (replicated.end <= next)
+				continue;
+			
+			// the shares it orders are ours to track now, they are not ordered a second time
+			acknowledgeShares(replicated.ordered);
+			replicate(replicated.from(next));
+		}
+		
+		commitReplicated();
+	}
+	
+	// Only to the connected peers when telling them what is committed, the regular ones reach every peer
+	private void sendHeartbeats(boolean connectedOnly) {
+		long currentTerm;
+		long nextSequence;
+		synchronized(this) {
+			if (closed || masterId != serverId)
+				return;
+			
+			currentTerm  = term;
+			nextSequence = chatlog.getNextIndex();
+		}
+		
+		for (PeerLink peer : peers) {
+			if (peer == null || (connectedOnly && !peer.isConnected()))
+				continue;
+			
+			try {
+				long peerTerm = peer.resolve().heartbeat(serverId, currentTerm, nextSequence);
+				if (peerTerm > currentTerm) {
+					stepDown(peerTerm);
+					return;
 				}
 			}
+			catch (RemoteException | NotBoundException ex) {
+				// the server is down, it registers again when it is back
+				disconnectPeer(peer);
+			}
+		}
+	}
+	
+	private synchronized void stepDown(long newerTerm) {
+		if (newerTerm <= term)
+			return;
+		
+		if (masterId == serverId) {
+			masterId = NO_MASTER;
+			retireBroadcasts(term);
+			uncommitted.clear(); // the new master commits what it got of them
 		}
 		
-		serverBootStatus = null;
+		term     = newerTerm;
+		votedFor = NO_MASTER;
 	}
 	
-	private synchronized void becomeMaster(){
-		masterId = serverId;
+	// Caller holds the room lock, returns true if the master is a different one now
+	private boolean adoptMaster(int id, long masterTerm) {
+		// held batches of another master or term may differ from the new master's, it resends its own
+		if (masterTerm > term || masterId != id)
+			uncommitted.clear();
+		
+		if (masterTerm > term) {
+			term     = masterTerm;
+			votedFor = NO_MASTER;
+		}
 		
-		for(int i = 0; i < remoteRooms.length; i++ ) {
-			if(remoteRooms[i] != null){
-				try {
-					remoteRooms[i].setMaster(serverId);
-				} catch (RemoteException e) {
-					System.err.println("Error: (" + roomname + ") ");
-					e.printStackTrace();
-					removeRoom(i);
+		lastHeartbeatMillis = System.currentTimeMillis();
+		if (masterId == id)
+			return false;
+		
+		if (masterId == serverId)
+			retireBroadcasts(masterTerm - 1);
+		masterId = id;
+		return true;
+	}
+	
+	// Caller holds the room lock, followers catch up on those from the new master
+	private void retireBroadcasts(long upToTerm) {
+		for (PeerLink peer : peers)
+			if (peer != null)
+				peer.retireBroadcasts(upToTerm);
+	}
+	
+	private void onMasterChanged() {
+		int master;
+		synchronized(this) {
+			master = masterId;
+		}
+		if (master == NO_MASTER)
+			return;
+		
+		synchronized(shareLock) {
+			// whatever the links to other servers still hold goes to the new master instead
+			for (PeerLink peer : peers)
+				if (peer != null && peer.getPeerId() != master)
+					peer.retireShares(nextShareId);
+			
+			if (master == serverId) {
+				// our own unordered shares go straight into the order
+				for (Map.Entry<Long, MessageBatch> share : unackedShares.entrySet()) {
+					for (ChatMessage msg : share.getValue().getMessages())
+						pending.offer(msg);
+					orderedShares[serverId] = share.getKey();
 				}
+				unackedShares.clear();
 			}
+			else {
+				// resent in order, the new master drops those the old one had ordered
+				for (Map.Entry<Long, MessageBatch> share : unackedShares.entrySet())
+					peers[master].share(share.getKey(), share.getValue());
+			}
+		}
+		
+		// messages held while there was no master
+		requestDrain();
+	}
+	
+	void onPeerFailure(PeerLink peer, Exception cause) {
+		System.err.println("Error: (" + roomname + ") lost server " + peer.getPeerId());
+		
+		// unordered shares stay in unackedShares, an election follows if the heartbeats stop too
+		synchronized(this) {
+			if (masterId == peer.getPeerId())
+				masterId = NO_MASTER;
 		}
+		
+		dropPeerUsers(peer.getPeerId());
+		commitReplicated(); // no longer waited for
+	}
+	
+	// Its users are listed again once the link is back, see onPeerConnected()
+	private void disconnectPeer(PeerLink peer) {
+		peer.disconnect();
+		dropPeerUsers(peer.getPeerId());
+		commitReplicated();
 	}
 	
-	private synchronized void removeRoom(int roomId)
-	{
-		remoteRooms[roomId] = null;
+	// The master reaches every server with its heartbeats, the others retry lost links here
+	private void reconnectPeers() {
+		for (PeerLink peer : peers) {
+			if (peer == null || peer.isConnected())
+				continue;
+			
+			try {
+				peer.resolve();
+			}
+			catch (RemoteException | NotBoundException ex) {
+				// still down, tried again on the next tick
+			}
+		}
+	}
+	
+	
+	
+	// A batch in its final order on its way to being committed
+	private static class ReplicatedBatch {
+		private ChatMessage[]  messages;
+		private MessageBatch   batch;
+		private long[]         ordered;
+		private long           first;
+		private long           end;
+		private List<PeerLink> replicas; // master only, the peers it went to
+		
+		public ReplicatedBatch(ChatMessage[] sequenced, MessageBatch shared, long[] orderedShares) {
+			messages = sequenced;
+			batch    = shared;
+			ordered  = orderedShares;
+			first    = sequenced[0].getSequence();
+			end      = sequenced[sequenced.length - 1].getSequence() + 1;
+			replicas = Collections.emptyList();
+		}
+		
+		// The part from the given sequence on, the batch when there is nothing to cut
+		public ReplicatedBatch from(long sequence) {
+			if (sequence <= first)
+				return this;
+			
+			ChatMessage[] rest = Arrays.copyOfRange(messages, (int) (sequence - first), messages.length);
+			return new ReplicatedBatch(rest, new MessageBatch(rest), ordered);
+		}
 	}
-}
\ No newline at end of file
+}
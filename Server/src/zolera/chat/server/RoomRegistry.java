@@ -0,0 +1,181 @@
+package zolera.chat.server;
+
+import java.io.IOException;
+import java.util.*;
+
+import zolera.chat.infrastructure.*;
+
+// Every room open on this server, keyed by name. Rooms are opened on their first
+// reference and closed again once idle, the journal keeps their history in between.
+// The names are spread over independently locked shards, so opening a room (which
+// reads its journal) only blocks lookups that hash to the same shard.
+public class RoomRegistry {
+	private ServerConfiguration config;
+	private int                 serverId;
+	private FanoutEngine        fanout;
+	private RoomScheduler       scheduler;
+	private LeaseWheel          leases;
+	private Set<String>         pinned;
+	private volatile boolean    closed;
+	private long                evictedDeliveries;
+	
+	private List<Map<String, RoomModel>> shards;
+	
+	public RoomRegistry(int id, FanoutEngine engine, RoomScheduler roomScheduler, LeaseWheel leaseWheel) {
+		config     = ServerConfiguration.getGlobal();
+		serverId   = id;
+		fanout     = engine;
+		scheduler  = roomScheduler;
+		leases     = leaseWheel;
+		pinned     = Collections.synchronizedSet(new HashSet<String>());
+		closed     = false;
+		evictedDeliveries = 0;
+		
+		int shardCount = Math.max(1, config.getRoomRegistryShards());
+		shards = new ArrayList<>(shardCount);
+		for (int s = 0; s < shardCount; s++)
+			shards.add(new HashMap<String, RoomModel>());
+	}
+	
+	private Map<String, RoomModel> getShard(String roomname) {
+		int hash = roomname.hashCode();
+		hash ^= (hash >>> 16);
+		return shards.get(Math.floorMod(hash, shards.size()));
+	}
+	
+	
+	
+	// Returns the room if it is open, without opening it
+	public RoomModel get(String roomname) {
+		Map<String, RoomModel> shard = getShard(roomname);
+		synchronized(shard) {
+			return shard.get(roomname);
+		}
+	}
+	
+	public RoomModel getOrCreate(String roomname)
+	throws IOException {
+		Map<String, RoomModel> shard = getShard(roomname);
+		synchronized(shard) {
+			if (closed)
+				throw new IOException("Server is terminating");
+			
+			RoomModel room = shard.get(roomname);
+			if (room == null) {
+				room = new RoomModel(roomname, serverId, fanout, scheduler, leases);
+				shard.put(roomname, room);
+				room.startReplication();
+			}
+			
+			room.touch();
+			return room;
+		}
+	}
+	
+	// A pinned room is never evicted, e.g. the default room
+	public RoomModel pin(String roomname)
+	throws IOException {
+		pinned.add(roomname);
+		return getOrCreate(roomname);
+	}
+	
+	public int size() {
+		int count = 0;
+		for (Map<String, RoomModel> shard : shards) {
+			synchronized(shard) {
+				count += shard.size();
+			}
+		}
+		return count;
+	}
+	
+	public int getClientCount() {
+		int count = 0;
+		for (RoomModel room : getOpenRooms())
+			count += room.getClientCount();
+		return count;
+	}
+	
+	public int getQueuedDeliveries() {
+		int queued = 0;
+		for (RoomModel room : getOpenRooms())
+			queued += room.getQueuedDeliveries();
+		return queued;
+	}
+	
+	// Messages delivered by every room since the server started, evicted ones included
+	public long getDeliveredMessages() {
+		long delivered;
+		synchronized(this) {
+			delivered = evictedDeliveries;
+		}
+		for (RoomModel room : getOpenRooms())
+			delivered += room.getDeliveredMessages();
+		return delivered;
+	}
+	
+	// Snapshot, the rooms are queried without holding the shard locks
+	private List<RoomModel> getOpenRooms() {
+		List<RoomModel> open = new ArrayList<>();
+		for (Map<String, RoomModel> shard : shards) {
+			synchronized(shard) {
+				open.addAll(shard.values());
+			}
+		}
+		return open;
+	}
+	
+	
+	
+	public void startEvictionSweep() {
+		final long sweepMillis = config.getRoomEvictionSweepMillis();
+		
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				evictIdleRooms();
+				if (!closed)
+					scheduler.schedule(this, sweepMillis);
+			}
+		}, sweepMillis);
+	}
+	
+	public int evictIdleRooms() {
+		long now         = System.currentTimeMillis();
+		long idleTimeout = config.getRoomIdleTimeoutMillis();
+		int  evicted     = 0;
+		
+		for (Map<String, RoomModel> shard : shards) {
+			// closed under the shard lock, a new instance of the room must not open the journal first
+			synchronized(shard) {
+				Iterator<RoomModel> rooms = shard.values().iterator();
+				while (rooms.hasNext()) {
+					RoomModel room = rooms.next();
+					if (pinned.contains(room.getRoomname()) || !room.isIdle(now, idleTimeout))
+						continue;
+					
+					rooms.remove();
+					room.close();
+					evicted++;
+					synchronized(this) {
+						evictedDeliveries += room.getDeliveredMessages();
+					}
+				}
+			}
+		}
+		
+		return evicted;
+	}
+	
+	public void close() {
+		closed = true;
+		
+		for (Map<String, RoomModel> shard : shards) {
+			synchronized(shard) {
+				for (RoomModel room : shard.values())
+					room.close();
+				shard.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package zolera.chat.server;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+import zolera.chat.infrastructure.*;
+
+// Runs the drain tasks of every room on a fixed set of workers, one per core.
+// A room is only submitted while it has messages to broadcast, so idle rooms
+// cost no thread at all. Each worker owns a deque: tasks submitted from a
+// worker stay on it, tasks from other threads are spread round robin, and a
+// worker that runs dry steals from the tail of the others.
+public class RoomScheduler {
+	private Worker[]                 workers;
+	private ScheduledExecutorService timer;
+	private AtomicInteger            nextWorker;
+	private volatile boolean         shutdown;
+	
+	public RoomScheduler() {
+		this(ServerConfiguration.getGlobal());
+	}
+	
+	public RoomScheduler(ServerConfiguration config) {
+		workers    = new Worker[Math.max(1, config.getRoomSchedulerThreads())];
+		timer      = Executors.newSingleThreadScheduledExecutor(new FanoutEngine.DaemonThreadFactory("RoomSchedulerTimer"));
+		nextWorker = new AtomicInteger(0);
+		shutdown   = false;
+		
+		for (int w = 0; w < workers.length; w++)
+			workers[w] = new Worker(w);
+		for (Worker worker : workers)
+			worker.thread.start();
+	}
+	
+	public void execute(Runnable task) {
+		if (shutdown)
+			return; // the server is terminating
+		
+		Worker target = getCurrentWorker();
+		if (target == null)
+			target = workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+		
+		target.push(new Task(task));
+		
+		// wake the owner, or if it is busy someone idle that can steal the task
+		if (!target.unparkIfIdle())
+			for (Worker worker : workers)
+				if (worker != target && worker.unparkIfIdle())
+					break;
+	}
+	
+	public void schedule(final Runnable task, long delayMillis) {
+		try {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					execute(task);
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException ree) {
+			// scheduler already shut down, the server is terminating
+		}
+	}
+	
+	public void shutdown() {
+		shutdown = true;
+		timer.shutdownNow();
+		
+		for (Worker worker : workers)
+			LockSupport.unpark(worker.thread);
+	}
+	
+	public int getWorkerCount() {
+		return workers.length;
+	}
+	
+	public WorkerMetrics[] getWorkerMetrics() {
+		WorkerMetrics[] metrics = new WorkerMetrics[workers.length];
+		for (int w = 0; w < workers.length; w++)
+			metrics[w] = workers[w].getMetrics();
+		return metrics;
+	}
+	
+	private Worker getCurrentWorker() {
+		Thread current = Thread.currentThread();
+		for (Worker worker : workers)
+			if (worker.thread == current)
+				return worker;
+		return null;
+	}
+	
+	private Task steal(Worker thief) {
+		// start after the thief, so the victims are not always the same workers
+		for (int offset = 1; offset < workers.length; offset++) {
+			Worker victim = workers[(thief.index + offset) % workers.length];
+			Task   task   = victim.pollLast();
+			if (task != null)
+				return task;
+		}
+		return null;
+	}
+	
+	private boolean hasQueuedTasks() {
+		for (Worker worker : workers)
+			if (worker.depth.get() > 0)
+				return true;
+		return false;
+	}
+	
+	
+	
+	private static class Task {
+		private Runnable runnable;
+		private long     submittedNanos;
+		
+		public Task(Runnable task) {
+			runnable       = task;
+			submittedNanos = System.nanoTime();
+		}
+	}
+	
+	private class Worker
+	implements Runnable {
+		private int                         index;
+		private Thread                      thread;
+		private ConcurrentLinkedDeque<Task> deque;
+		private AtomicInteger               depth;
+		private volatile boolean            idle;
+		
+		// only written by the worker thread, read by getMetrics()
+		private volatile long executedTasks;
+		private volatile long stolenTasks;
+		private volatile long totalLatencyNanos;
+		private volatile long maxLatencyNanos;
+		private volatile int  maxDepth;
+		
+		public Worker(int id) {
+			index  = id;
+			thread = new Thread(this, "RoomScheduler-" + id);
+			deque  = new ConcurrentLinkedDeque<>();
+			depth  = new AtomicInteger(0);
+			idle   = false;
+			thread.setDaemon(true);
+		}
+		
+		public void push(Task task) {
+			deque.addLast(task);
+			depth.incrementAndGet();
+		}
+		
+		public Task pollFirst() {
+			Task task = deque.pollFirst();
+			if (task != null)
+				depth.decrementAndGet();
+			return task;
+		}
+		
+		public Task pollLast() {
+			Task task = deque.pollLast();
+			if (task != null)
+				depth.decrementAndGet();
+			return task;
+		}
+		
+		public boolean unparkIfIdle() {
+			if (!idle)
+				return false;
+			
+			LockSupport.unpark(thread);
+			return true;
+		}
+		
+		@Override
+		public void run() {
+			// This is the worker thread entry point
+			while (!shutdown) {
+				int currentDepth = depth.get();
+				if (currentDepth > maxDepth)
+					maxDepth = currentDepth;
+				
+				boolean stolen = false;
+				Task    task   = pollFirst();
+				if (task == null) {
+					task   = steal(this);
+					stolen = (task != null);
+				}
+				
+				if (task == null) {
+					// announce idleness before the last check, submitters test it after pushing and
+					// unpark us, delayed tasks too through the timer. No timeout, an idle server sleeps
+					idle = true;
+					if (!hasQueuedTasks() && !shutdown)
+						LockSupport.park(this);
+					idle = false;
+					continue;
+				}
+				
+				long latency = System.nanoTime() - task.submittedNanos;
+				totalLatencyNanos += latency;
+				if (latency > maxLatencyNanos)
+					maxLatencyNanos = latency;
+				if (stolen)
+					stolenTasks++;
+				
+				executedTasks++;
+				try {
+					task.runnable.run();
+				}
+				catch (RuntimeException re) {
+					System.err.println("Error: (" + thread.getName() + ") ");
+					re.printStackTrace();
+				}
+			}
+		}
+		
+		public WorkerMetrics getMetrics() {
+			return new WorkerMetrics(index, depth.get(), maxDepth, executedTasks, stolenTasks,
+			                         totalLatencyNanos, maxLatencyNanos);
+		}
+	}
+	
+	
+	
+	// Snapshot of one worker, latencies go from submission to the start of the task
+	public static final class WorkerMetrics {
+		private final int  worker;
+		private final int  queueDepth;
+		private final int  maxQueueDepth;
+		private final long executedTasks;
+		private final long stolenTasks;
+		private final long totalLatencyNanos;
+		private final long maxLatencyNanos;
+		
+		public WorkerMetrics(int id, int depth, int maxDepth, long executed, long stolen, long totalLatency, long maxLatency) {
+			worker            = id;
+			queueDepth        = depth;
+			maxQueueDepth     = maxDepth;
+			executedTasks     = executed;
+			stolenTasks       = stolen;
+			totalLatencyNanos = totalLatency;
+			maxLatencyNanos   = maxLatency;
+		}
+		
+		public int getWorker() {
+			return worker;
+		}
+		
+		public int getQueueDepth() {
+			return queueDepth;
+		}
+		
+		public int getMaxQueueDepth() {
+			return maxQueueDepth;
+		}
+		
+		public long getExecutedTasks() {
+			return executedTasks;
+		}
+		
+		public long getStolenTasks() {
+			return stolenTasks;
+		}
+		
+		public long getMeanLatencyMicros() {
+			return (executedTasks == 0) ? 0 : totalLatencyNanos / executedTasks / 1000;
+		}
+		
+		public long getMaxLatencyMicros() {
+			return maxLatencyNanos / 1000;
+		}
+		
+		@Override
+		public String toString() {
+			return "worker " + worker + ": depth " + queueDepth + " (max " + maxQueueDepth + "), "
+			     + executedTasks + " tasks (" + stolenTasks + " stolen), latency mean "
+			     + getMeanLatencyMicros() + " us, max " + getMaxLatencyMicros() + " us";
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package zolera.chat.server;
+
+import java.util.*;
+
+import zolera.chat.infrastructure.*;
+
+// Users present in a room across every server. Each server announces the
+// sessions of its own clients, so sessions are counted per origin server and
+// a lost server takes its users along. Clients see the roster as published:
+// changes pile up until the room dispatcher takes them as one versioned delta.
+public class Roster {
+	private Map<Integer, Map<String, Integer>> sessions;
+	private Map<String, Integer>               present;
+	private Set<String>                        published;
+	private Set<String>                        changed;
+	private long                               version;
+	
+	public Roster() {
+		sessions  = new HashMap<>();
+		present   = new HashMap<>();
+		published = new TreeSet<>();
+		changed   = new HashSet<>();
+		version   = 0;
+	}
+	
+	public synchronized void add(int origin, String user) {
+		change(origin, user, +1);
+	}
+	
+	public synchronized void remove(int origin, String user) {
+		change(origin, user, -1);
+	}
+	
+	// Announcement of another server, a snapshot replaces every session it had
+	public synchronized void apply(int origin, PresenceUpdate update) {
+		if (update.isSnapshot())
+			removeOrigin(origin);
+		
+		for (String user : update.getJoined())
+			change(origin, user, +1);
+		for (String user : update.getLeft())
+			change(origin, user, -1);
+	}
+	
+	public synchronized void removeOrigin(int origin) {
+		Map<String, Integer> users = sessions.remove(origin);
+		if (users == null)
+			return;
+		
+		for (Map.Entry<String, Integer> user : users.entrySet())
+			changeTotal(user.getKey(), -user.getValue());
+	}
+	
+	// Caller holds the lock, a session that was never announced is not removed
+	private void change(int origin, String user, int delta) {
+		Map<String, Integer> users = sessions.get(origin);
+		if (users == null) {
+			users = new HashMap<>();
+			sessions.put(origin, users);
+		}
+		
+		Integer current = users.get(user);
+		int     count   = (current == null) ? 0 : current;
+		int     updated = Math.max(0, count + delta);
+		if (updated == count)
+			return;
+		
+		if (updated == 0)
+			users.remove(user);
+		else
+			users.put(user, updated);
+		changeTotal(user, updated - count);
+	}
+	
+	// Caller holds the lock
+	private void changeTotal(String user, int delta) {
+		Integer current = present.get(user);
+		int     updated = ((current == null) ? 0 : current) + delta;
+		
+		if (updated <= 0)
+			present.remove(user);
+		else
+			present.put(user, updated);
+		changed.add(user);
+	}
+	
+	
+	
+	// No user on any server, the room may be closed
+	public synchronized boolean isEmpty() {
+		return present.isEmpty();
+	}
+	
+	// Every session of one server, what it announces to a server that (re)connects
+	public synchronized PresenceUpdate getSessionsOf(int origin) {
+		List<String>         list  = new ArrayList<>();
+		Map<String, Integer> users = sessions.get(origin);
+		if (users != null)
+			for (Map.Entry<String, Integer> user : users.entrySet())
+				for (int s = 0; s < user.getValue(); s++)
+					list.add(user.getKey());
+		
+		return PresenceUpdate.snapshot(0, list);
+	}
+	
+	// What a joining client starts from, the deltas after it continue from this version
+	public synchronized PresenceUpdate getSnapshot() {
+		return PresenceUpdate.snapshot(version, published);
+	}
+	
+	// Returns null if no user joined or left since the last delta
+	public synchronized PresenceUpdate takeDelta() {
+		List<String> joined = new ArrayList<>();
+		List<String> left   = new ArrayList<>();
+		for (String user : changed) {
+			boolean isPresent = present.containsKey(user);
+			if (isPresent && published.add(user))
+				joined.add(user);
+			else if (!isPresent && published.remove(user))
+				left.add(user);
+		}
+		changed.clear();
+		
+		if (joined.isEmpty() && left.isEmpty())
+			return null;
+		
+		Collections.sort(joined);
+		Collections.sort(left);
+		return PresenceUpdate.delta(++version, joined, left);
+	}
+}
@@ -1,5 +1,6 @@
 package zolera.chat.server;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.rmi.*;
 import java.rmi.registry.*;
@@ -12,14 +13,24 @@ public class ServerModel
 implements RemoteServerModel {
 	private ServerConfiguration config;
 	private int serverId;
-	private RoomModel defaultRoom;
+	private RoomRegistry rooms;
+	private FanoutEngine fanout;
+	private RoomScheduler scheduler;
+	private LeaseWheel leases;
+	private LoadMonitor loadMonitor;
+	private NioServerEndpoint nioEndpoint;
 	private int registryPort;
 	private RemoteServerModel serverRef;
 	
 	public ServerModel(int id) {
 		config       = ServerConfiguration.getGlobal();
 		serverId     = id;
-		defaultRoom  = null;
+		rooms        = null;
+		fanout       = null;
+		scheduler    = null;
+		leases       = null;
+		loadMonitor  = null;
+		nioEndpoint  = null;
 		registryPort = -1;
 		serverRef    = null;
 	}
@@ -31,7 +42,8 @@ implements RemoteServerModel {
 		
 		try {
 			register();
-			createDefaultRoom();
+			createRoomRegistry();
+			startNioEndpoint();
 		}
 		catch (TerminateServerException tse) {
 			// gracefully terminate server when it hits an unrecoverable exception
@@ -49,30 +61,58 @@ implements RemoteServerModel {
 		return;
 	}
 	
-	private void createDefaultRoom()
+	private void createRoomRegistry()
 	throws TerminateServerException {
+		fanout     = new FanoutEngine(config);
+		scheduler  = new RoomScheduler(config);
+		leases     = new LeaseWheel(scheduler);
+		rooms      = new RoomRegistry(serverId, fanout, scheduler, leases);
+		
 		try {
-			defaultRoom = createRoom(config.getDefaultRoomname());
+			// other rooms are opened on their first reference
+			rooms.pin(config.getDefaultRoomname());
 		}
 		catch (RemoteException re) {
 			throw getRMIException(re);
 		}
+		catch (IOException ioe) {
+			throw new TerminateServerException("Failed to open the room journal", ioe);
+		}
+		
+		rooms.startEvictionSweep();
+		leases.start();
+		
+		loadMonitor = new LoadMonitor(serverId, rooms, scheduler, fanout);
+		loadMonitor.start();
 	}
 	
-	private RoomModel createRoom(String name)
-	throws RemoteException {
-		RoomModel room = new RoomModel(name, serverId);
-		room.startConsumerThread();
-		return room;
+	private void startNioEndpoint()
+	throws TerminateServerException {
+		if (config.getTransport() != TransportType.NIO)
+			return;
+		
+		try {
+			nioEndpoint = new NioServerEndpoint(this, config.getNioWorkerThreads());
+			nioEndpoint.start(registryPort + config.getNioPortOffset());
+		}
+		catch (IOException ioe) {
+			throw new TerminateServerException("Failed to open the NIO endpoint", ioe);
+		}
 	}
 	
 	private void terminate() {
-		if (defaultRoom != null)
-			terminateRoom(defaultRoom);
-	}
-	
-	private void terminateRoom(RoomModel room) {
-		room.stopConsumerThread();
+		if (loadMonitor != null)
+			loadMonitor.stop();
+		if (leases != null)
+			leases.stop();
+		if (nioEndpoint != null)
+			nioEndpoint.stop();
+		if (rooms != null)
+			rooms.close();
+		if (scheduler != null)
+			scheduler.shutdown();
+		if (fanout != null)
+			fanout.shutdown();
 	}
 	
 	private void register()
@@ -105,6 +145,10 @@ implements RemoteServerModel {
 		}
 	}
 	
+	public RoomScheduler.WorkerMetrics[] getSchedulerMetrics() {
+		return (scheduler == null) ? new RoomScheduler.WorkerMetrics[0] : scheduler.getWorkerMetrics();
+	}
+	
 	private TerminateServerException getRMIException(RemoteException re) {
 		return new TerminateServerException("Failure on RMI layer", re);
 	}
@@ -114,18 +158,71 @@ implements RemoteServerModel {
 	@Override
 	public RemoteRoomModel reference(String roomname)
 	throws RemoteException {
-		if (!reference_verifyValidity(roomname))
-			return null;		
-		return (defaultRoom == null) ? null : defaultRoom.getReference();
+		RoomModel room;
+		try {
+			room = getLocalRoom(roomname);
+			if (room == null)
+				return null;
+		}
+		catch (RemoteException re) {
+			throw re;
+		}
+		catch (IOException ioe) {
+			throw new RemoteException("Failed to open room '" + roomname + "'", ioe);
+		}
+		
+		// every server replicates the room, a less loaded one takes the client instead
+		if (loadMonitor != null && config.isReplicationEnabled()) {
+			int target = loadMonitor.selectServer();
+			if (target != serverId) {
+				try {
+					RemoteRoomModel redirected = room.getPeerReference(target);
+					loadMonitor.onRedirected(target);
+					return redirected;
+				}
+				catch (RemoteException | NotBoundException ex) {
+					// unreachable after all, serve the client here
+				}
+			}
+			loadMonitor.onAccepted();
+		}
+		
+		return room.getReference();
+	}
+	
+	@Override
+	public RemoteRoomModel referenceLocal(String roomname)
+	throws RemoteException {
+		try {
+			RoomModel room = getLocalRoom(roomname);
+			return (room == null) ? null : room.getReference();
+		}
+		catch (RemoteException re) {
+			throw re;
+		}
+		catch (IOException ioe) {
+			throw new RemoteException("Failed to open room '" + roomname + "'", ioe);
+		}
+	}
+	
+	@Override
+	public ServerLoad getLoad() {
+		return (loadMonitor == null) ? new ServerLoad(serverId, 0, 0, 0, 0) : loadMonitor.getLocalLoad();
+	}
+	
+	// Same lookup as referenceLocal(), for transports that don't go through RMI
+	RoomModel getLocalRoom(String roomname)
+	throws IOException {
+		if (!reference_verifyValidity(roomname) || rooms == null)
+			return null;
+		return rooms.getOrCreate(roomname);
 	}
 	
 	private boolean reference_verifyValidity(String roomname) {
 		if (roomname == null)
 			return false;
-		if (!roomname.matches(config.getRoomnamePattern()))
+		if (!config.isValidRoomname(roomname))
 			return false;
-		if (!roomname.equals(config.getDefaultRoomname()))
-			return false; // not currently supporting other rooms
 		
 		return true;
 	}